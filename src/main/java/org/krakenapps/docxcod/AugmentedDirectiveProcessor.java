@@ -15,19 +15,13 @@
  */
 package org.krakenapps.docxcod;
 
-import static org.krakenapps.docxcod.util.CloseableHelper.safeClose;
 import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPath;
-import static org.krakenapps.docxcod.util.XMLDocHelper.newDocumentBuilder;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.util.Map;
 
 import javax.xml.xpath.XPath;
 
-import org.krakenapps.docxcod.util.XMLDocHelper;
 import org.krakenapps.docxcod.util.XMLDocHelper.NodeListIterAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -116,52 +110,55 @@ public class AugmentedDirectiveProcessor implements OOXMLProcessor {
 
 	@Override
 	public void process(OOXMLPackage pkg, Map<String, Object> rootMap) {
-		InputStream f = null;
 		try {
-			f = new FileInputStream(new File(pkg.getDataDir(), "word/document.xml"));
-			Document doc = newDocumentBuilder().parse(f);
+			Document doc = pkg.getDocument("word/document.xml");
 
 			XPath xpath = newXPath(doc);
 			NodeList nodeList = evaluateXPath(xpath, "//KMagicNode", doc);
 
 			for (Node n : new NodeListIterAdapter(nodeList)) {
-				try {
-					AugmentedDirective ad = AugmentedDirective.parseDirective(n.getTextContent());
-					Node runNode;
-					Node parentOfPara = null;
-					Node targetPara = runNode = n.getParentNode().getParentNode(); // maybe w:r
-
-					if (!runNode.getNodeName().equals("w:r")) {
-						logger.warn("runNode is not w:r({}, directive: {})", runNode.getNodeName(), ad.getRemaining());
-						continue;
-					}
-					// find table row element following parent nodes.
-					do {
-						targetPara = targetPara.getParentNode();
-					} while (!targetPara.getNodeName().equals(ad.getExpectedParent()));
-					parentOfPara = targetPara.getParentNode();
-
-					if (!ad.isBefore()) {
-						targetPara = targetPara.getNextSibling();
-					}
-
-					// insert magic node
-					parentOfPara.insertBefore(getMagicNode(doc, ad.getRemaining()), targetPara);
-
-					// remove annotated node
-					runNode.getParentNode().removeChild(runNode);
-				} catch (CannotParseAugmentedDirectiveException e) {
-					continue;
-				}
-
+				hoist(doc, n);
 			}
 
-			XMLDocHelper.save(doc, new File(pkg.getDataDir(), "word/document.xml"), true);
+			pkg.markDirty("word/document.xml");
 
 		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			safeClose(f);
+		}
+	}
+
+	/**
+	 * moves magic node having augmented directive before or after its
+	 * paragraph or table row, removing the run containing it.
+	 */
+	void hoist(Document doc, Node n) {
+		try {
+			AugmentedDirective ad = AugmentedDirective.parseDirective(n.getTextContent());
+			Node runNode;
+			Node parentOfPara = null;
+			Node targetPara = runNode = n.getParentNode().getParentNode(); // maybe w:r
+
+			if (!runNode.getNodeName().equals("w:r")) {
+				logger.warn("runNode is not w:r({}, directive: {})", runNode.getNodeName(), ad.getRemaining());
+				return;
+			}
+			// find table row element following parent nodes.
+			do {
+				targetPara = targetPara.getParentNode();
+			} while (!targetPara.getNodeName().equals(ad.getExpectedParent()));
+			parentOfPara = targetPara.getParentNode();
+
+			if (!ad.isBefore()) {
+				targetPara = targetPara.getNextSibling();
+			}
+
+			// insert magic node
+			parentOfPara.insertBefore(getMagicNode(doc, ad.getRemaining()), targetPara);
+
+			// remove annotated node
+			runNode.getParentNode().removeChild(runNode);
+		} catch (CannotParseAugmentedDirectiveException e) {
+			return;
 		}
 	}
 
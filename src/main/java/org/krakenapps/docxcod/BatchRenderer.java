@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * renders one template with many data models. template is compiled once, and
+ * models are rendered concurrently in the executor and stored to an
+ * {@link OutputSink}. models are taken from the iterator as renders complete,
+ * so they can be produced lazily.
+ *
+ * a failed model is logged and reported in {@link BatchReport#getFailures()},
+ * and does not stop the batch.
+ */
+public class BatchRenderer {
+	private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+	private final ExecutorService executor;
+	private final int maxPending;
+	private String namePattern = "%06d.docx";
+
+	/**
+	 * @param executor
+	 *            executor rendering documents, or null to render in the calling
+	 *            thread. it is not shut down by the renderer. do not use the
+	 *            executor given to {@link DocxTemplate} for parts, since
+	 *            renders wait for part tasks.
+	 * @param threads
+	 *            number of threads of the executor. it bounds models held in
+	 *            memory to twice of it.
+	 */
+	public BatchRenderer(ExecutorService executor, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads should be positive: " + threads);
+		this.executor = executor;
+		this.maxPending = threads * 2;
+	}
+
+	public String getNamePattern() {
+		return namePattern;
+	}
+
+	/**
+	 * sets format of document names. it is formatted with index of the model
+	 * starting from 0. default is "%06d.docx".
+	 */
+	public void setNamePattern(String namePattern) {
+		this.namePattern = namePattern;
+	}
+
+	public BatchReport renderBatch(InputStream template, Iterator<Map<String, Object>> models, OutputSink sink)
+			throws IOException {
+		return renderBatch(DocxTemplate.compile(template), models, sink);
+	}
+
+	/**
+	 * renders all models and waits for completion. sink is not closed.
+	 */
+	public BatchReport renderBatch(final DocxTemplate template, Iterator<Map<String, Object>> models,
+			final OutputSink sink) throws IOException {
+		final Semaphore pending = new Semaphore(maxPending);
+		final List<Integer> failures = Collections.synchronizedList(new ArrayList<Integer>());
+		final LatencyRecorder recorder = new LatencyRecorder();
+		long begin = System.nanoTime();
+		int count = 0;
+		try {
+			while (models.hasNext()) {
+				final Map<String, Object> model = models.next();
+				final int index = count++;
+				final String name = String.format(namePattern, index);
+
+				Runnable task = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							long t = System.nanoTime();
+							if (render(template, model, sink, name))
+								recorder.add(System.nanoTime() - t);
+							else
+								failures.add(index);
+						} finally {
+							pending.release();
+						}
+					}
+				};
+
+				pending.acquire();
+				if (executor == null) {
+					task.run();
+					continue;
+				}
+
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					pending.release();
+					throw new IOException("executor rejected document " + name, e);
+				}
+			}
+
+			// wait for all submitted renders
+			pending.acquire(maxPending);
+			pending.release(maxPending);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while rendering batch", e);
+		}
+
+		long elapsed = System.nanoTime() - begin;
+		List<Integer> sorted = new ArrayList<Integer>(failures);
+		Collections.sort(sorted);
+		BatchReport report = new BatchReport(count, sorted, elapsed, recorder.toArray());
+		logger.info("renderBatch: {}", report);
+		return report;
+	}
+
+	private boolean render(DocxTemplate template, Map<String, Object> model, OutputSink sink, String name) {
+		OutputStream os = null;
+		boolean completed = false;
+		try {
+			os = sink.openOutputStream(name);
+			template.render(model, os);
+			os.close();
+			completed = true;
+		} catch (Throwable t) {
+			logger.warn("renderBatch: rendering " + name + " failed", t);
+		} finally {
+			if (os != null && !completed)
+				PartStore.abort(os);
+		}
+		return completed;
+	}
+
+	private static class LatencyRecorder {
+		private long[] values = new long[1024];
+		private int size = 0;
+
+		public synchronized void add(long nanos) {
+			if (size == values.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = nanos;
+		}
+
+		public synchronized long[] toArray() {
+			long[] result = new long[size];
+			System.arraycopy(values, 0, result, 0, size);
+			return result;
+		}
+	}
+}
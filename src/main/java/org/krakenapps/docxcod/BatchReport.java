@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * result of {@link BatchRenderer#renderBatch}. latencies are measured per
+ * document from start of its render until its output is stored.
+ */
+public class BatchReport {
+	private final int documentCount;
+	private final List<Integer> failures;
+	private final long elapsedNanos;
+
+	// sorted latencies of succeeded documents in nanoseconds
+	private final long[] latencies;
+
+	BatchReport(int documentCount, List<Integer> failures, long elapsedNanos, long[] latencies) {
+		this.documentCount = documentCount;
+		this.failures = Collections.unmodifiableList(failures);
+		this.elapsedNanos = elapsedNanos;
+		this.latencies = latencies;
+		Arrays.sort(latencies);
+	}
+
+	/**
+	 * returns number of models taken from the iterator.
+	 */
+	public int getDocumentCount() {
+		return documentCount;
+	}
+
+	/**
+	 * returns indexes of models failed to render, in ascending order.
+	 */
+	public List<Integer> getFailures() {
+		return failures;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000L;
+	}
+
+	/**
+	 * returns rendered documents per second.
+	 */
+	public double getThroughput() {
+		if (elapsedNanos == 0)
+			return 0;
+		return latencies.length / (elapsedNanos / 1e9);
+	}
+
+	/**
+	 * returns latency in milliseconds at given percentile (0 to 100), using
+	 * nearest rank. returns 0 if no document was rendered.
+	 */
+	public double getLatencyPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile out of range: " + percentile);
+		if (latencies.length == 0)
+			return 0;
+
+		int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+		return latencies[Math.max(rank, 1) - 1] / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("documents=%d, failures=%d, elapsed=%dms, throughput=%.1f/s, "
+				+ "latency p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms", documentCount, failures.size(),
+				getElapsedMillis(), getThroughput(), getLatencyPercentile(50), getLatencyPercentile(90),
+				getLatencyPercentile(99), getLatencyPercentile(100));
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * texts of sheet cells indexed by coordinates. row and column are zero based,
+ * and packed into a long for an address: row in upper 32 bits and column in
+ * lower 32 bits. texts are kept in column-major arrays, so cells of a column
+ * range are sliced without looking up each address.
+ */
+public class CellGrid {
+	private static final int INITIAL_ROWS = 16;
+
+	// number of columns of a sheet (A to XFD)
+	public static final int MAX_COLUMNS = 16384;
+
+	// column letters by index, filled on first use. racing writers store
+	// equal immutable strings, so no lock is needed.
+	private static final String[] COLUMN_NAMES = new String[MAX_COLUMNS];
+
+	// column index to texts of rows. null means no cell
+	private String[][] columns = new String[0][];
+	// column index to number of rows used
+	private int[] rowCounts = new int[0];
+
+	public static long pack(int row, int col) {
+		return ((long) row << 32) | (col & 0xffffffffL);
+	}
+
+	public static int row(long address) {
+		return (int) (address >>> 32);
+	}
+
+	public static int column(long address) {
+		return (int) address;
+	}
+
+	/**
+	 * parses A1 style address (ex: AB12), and returns packed coordinates, or
+	 * -1 if address is malformed.
+	 */
+	public static long parseAddress(String address) {
+		int len = address.length();
+		int i = 0;
+		int col = 0;
+		while (i < len && address.charAt(i) >= 'A' && address.charAt(i) <= 'Z') {
+			col = col * 26 + (address.charAt(i) - 'A' + 1);
+			i++;
+		}
+		if (i == 0 || i == len)
+			return -1;
+
+		int row = 0;
+		for (; i < len; i++) {
+			char c = address.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			row = row * 10 + (c - '0');
+		}
+		if (row < 1)
+			return -1;
+
+		return pack(row - 1, col - 1);
+	}
+
+	/**
+	 * returns zero based index of column letters (ex: AA is 26), or -1 if
+	 * letters are malformed.
+	 */
+	public static int columnIndex(String letters) {
+		if (letters.isEmpty())
+			return -1;
+
+		int col = 0;
+		for (int i = 0; i < letters.length(); i++) {
+			char c = letters.charAt(i);
+			if (c < 'A' || c > 'Z')
+				return -1;
+			col = col * 26 + (c - 'A' + 1);
+		}
+		return col - 1;
+	}
+
+	/**
+	 * returns column letters of zero based index (ex: 26 is AA). letters of
+	 * columns in a sheet are cached, so no string is made after first call.
+	 */
+	public static String columnName(int col) {
+		if (col < 0)
+			throw new IllegalArgumentException("negative column index: " + col);
+		if (col >= MAX_COLUMNS)
+			return encodeColumn(col);
+
+		String name = COLUMN_NAMES[col];
+		if (name == null) {
+			name = encodeColumn(col);
+			COLUMN_NAMES[col] = name;
+		}
+		return name;
+	}
+
+	private static String encodeColumn(int col) {
+		char[] buf = new char[8];
+		int pos = buf.length;
+		int n = col + 1;
+		while (n > 0) {
+			n--;
+			buf[--pos] = (char) ('A' + n % 26);
+			n /= 26;
+		}
+		return new String(buf, pos, buf.length - pos);
+	}
+
+	public static String address(int row, int col) {
+		return appendAddress(new StringBuilder(12), row, col).toString();
+	}
+
+	/**
+	 * appends A1 style address of zero based row and column to sb, and
+	 * returns sb.
+	 */
+	public static StringBuilder appendAddress(StringBuilder sb, int row, int col) {
+		return sb.append(columnName(col)).append(row + 1);
+	}
+
+	public void put(long address, String text) {
+		put(row(address), column(address), text);
+	}
+
+	public void put(int row, int col, String text) {
+		if (col >= columns.length) {
+			int size = Math.max(col + 1, columns.length * 2);
+			columns = Arrays.copyOf(columns, size);
+			rowCounts = Arrays.copyOf(rowCounts, size);
+		}
+
+		String[] rows = columns[col];
+		if (rows == null) {
+			rows = new String[Math.max(row + 1, INITIAL_ROWS)];
+			columns[col] = rows;
+		} else if (row >= rows.length) {
+			rows = Arrays.copyOf(rows, Math.max(row + 1, rows.length * 2));
+			columns[col] = rows;
+		}
+
+		rows[row] = text;
+		if (row >= rowCounts[col])
+			rowCounts[col] = row + 1;
+	}
+
+	/**
+	 * returns text of the cell, or null if there is no such cell.
+	 */
+	public String get(int row, int col) {
+		if (row < 0 || col < 0 || col >= columns.length || row >= rowCounts[col])
+			return null;
+		return columns[col][row];
+	}
+
+	/**
+	 * returns texts of existing cells from rowStart to rowEnd (inclusive) of
+	 * the column, in row order.
+	 */
+	public List<String> getRange(int col, int rowStart, int rowEnd) {
+		if (col < 0 || col >= columns.length)
+			return new ArrayList<String>(0);
+
+		int end = Math.min(rowEnd + 1, rowCounts[col]);
+		int begin = Math.max(rowStart, 0);
+		List<String> data = new ArrayList<String>(Math.max(end - begin, 0));
+		String[] rows = columns[col];
+		for (int row = begin; row < end; row++)
+			if (rows[row] != null)
+				data.add(rows[row]);
+		return data;
+	}
+
+	/**
+	 * returns range of the table in the sheet. it starts from A1 and extends
+	 * down and right while cells have text.
+	 */
+	public String getTableRange() {
+		int row = 0;
+		int col = 0;
+		while (hasText(row + 1, col))
+			row++;
+		while (hasText(row, col + 1))
+			col++;
+
+		return "A1:" + address(row, col);
+	}
+
+	private boolean hasText(int row, int col) {
+		String text = get(row, col);
+		return text != null && !text.isEmpty();
+	}
+}
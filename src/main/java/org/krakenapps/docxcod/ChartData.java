@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * data of an embedded chart sheet evaluated from the model. the sheet has a
+ * header row (row 1) kept from the template and data rows from row 2, one for
+ * each loop item. cells are kept in a {@link CellGrid} under typed columns,
+ * and feed both the sheet and caches of the chart.
+ */
+public class ChartData {
+	public enum ColumnType {
+		// inline string cell
+		STRING,
+		// value cell
+		NUMBER,
+		// cell without content, filling the row up to the span of the sheet
+		EMPTY
+	}
+
+	public static class Column {
+		// column letter (ex: A)
+		public final String name;
+		public final ColumnType type;
+
+		public Column(String name, ColumnType type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	// header row and data rows. values of empty columns are empty strings.
+	private final CellGrid grid = new CellGrid();
+	private final List<Column> columns;
+	// indexes of columns having values, in order of row values
+	private final int[] valueColumns;
+	private int rowCount = 0;
+
+	/**
+	 * @param header
+	 *            cell address to text of header row
+	 * @param columns
+	 *            columns from A in order
+	 */
+	public ChartData(Map<String, String> header, List<Column> columns) {
+		this.columns = columns;
+		for (Map.Entry<String, String> e : header.entrySet()) {
+			long address = CellGrid.parseAddress(e.getKey());
+			if (address != -1 && CellGrid.row(address) == 0)
+				grid.put(address, e.getValue());
+		}
+
+		int count = 0;
+		for (Column c : columns)
+			if (c.type != ColumnType.EMPTY)
+				count++;
+		valueColumns = new int[count];
+		count = 0;
+		for (int i = 0; i < columns.size(); i++)
+			if (columns.get(i).type != ColumnType.EMPTY)
+				valueColumns[count++] = i;
+	}
+
+	public List<Column> getColumns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	/**
+	 * returns number of columns taking values from {@link #addRow(List)}.
+	 */
+	public int getValueColumnCount() {
+		return valueColumns.length;
+	}
+
+	/**
+	 * returns number of data rows.
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * appends a data row. values are given for columns other than empty ones,
+	 * in order of columns.
+	 */
+	public void addRow(List<String> values) {
+		if (values.size() != valueColumns.length)
+			throw new IllegalArgumentException("expected " + valueColumns.length + " values, but " + values.size());
+
+		rowCount++;
+		for (int i = 0; i < columns.size(); i++)
+			if (columns.get(i).type == ColumnType.EMPTY)
+				grid.put(rowCount, i, "");
+		for (int i = 0; i < valueColumns.length; i++)
+			grid.put(rowCount, valueColumns[i], values.get(i));
+	}
+
+	/**
+	 * returns value of zero based data row of the column.
+	 */
+	public String getValue(int column, int dataRow) {
+		if (dataRow < 0 || dataRow >= rowCount)
+			throw new IndexOutOfBoundsException("data row " + dataRow + " of " + rowCount);
+		return grid.get(dataRow + 1, column);
+	}
+
+	/**
+	 * returns text of the cell, or null if the sheet has no such cell.
+	 */
+	public String getCell(String column, int row) {
+		int col = CellGrid.columnIndex(column);
+		if (col < 0 || row < 1)
+			return null;
+		return grid.get(row - 1, col);
+	}
+
+	/**
+	 * returns texts of cells a chart series refers to. single cell range
+	 * returns the cell only. otherwise the range is extended to data rows:
+	 * cells from the first one at or below rowStart, while rows are
+	 * continuous. cells are sliced from the column of the grid.
+	 */
+	public List<String> getRange(String column, int rowStart, int rowEnd) {
+		if (rowStart == rowEnd) {
+			List<String> data = new ArrayList<String>(1);
+			String cell = getCell(column, rowStart);
+			if (cell != null)
+				data.add(cell);
+			return data;
+		}
+
+		return grid.getRange(CellGrid.columnIndex(column), Math.max(rowStart, 1) - 1, rowCount);
+	}
+
+	/**
+	 * returns range of the table in the sheet. it starts from A1 and extends
+	 * down and right while cells have text.
+	 */
+	public String getTableRange() {
+		return grid.getTableRange();
+	}
+}
@@ -20,14 +20,9 @@ import static org.krakenapps.docxcod.util.XMLDocHelper.newDocumentBuilder;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.parseXml;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,7 +36,6 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang.StringUtils;
 import org.krakenapps.docxcod.util.CloseableHelper;
 import org.krakenapps.docxcod.util.XMLDocHelper;
 import org.krakenapps.docxcod.util.XMLDocHelper.NodeListIterAdapter;
@@ -53,9 +47,6 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-
 import freemarker.core.Environment;
 import freemarker.template.TemplateMethodModelEx;
 import freemarker.template.TemplateModelException;
@@ -80,16 +71,18 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 
 	private static final String CHART_XML_CONTENTTYPE = "application/vnd.openxmlformats-officedocument.drawingml.chart+xml";
 	private static final String DOCXCOD_CHART_XML_EXT = "docxcod_chart_xml";
-	private static final String CONTENT_TYPES_XML = "[Content_Types].xml";
 
 	public class ChartResFunction implements TemplateMethodModelEx {
 		public static final String functionName = "ridHelper";
 		public int count = 0;
 		private boolean contentTypeAppended = false;
 		private final OOXMLPackage pkg;
+		private final EmbeddedChartCache workbooks;
 
 		public ChartResFunction(OOXMLPackage pkg) {
 			this.pkg = pkg;
+			// without shared cache, workbooks are prepared once per render
+			this.workbooks = chartCache != null ? chartCache : new EmbeddedChartCache();
 		}
 
 		@Override
@@ -120,22 +113,22 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 			return null;
 		}
 
-		private void updateChartXML(String chartXmlPath, ArrayList<CellData> cells)
-				throws UnsupportedDocumentException, XPathExpressionException, DOMException,
-				TransformerFactoryConfigurationError, TransformerException {
-			if (cells == null)
+		private void updateChartXML(String chartXmlPath, ChartData chartData) throws UnsupportedDocumentException,
+				IOException, XPathExpressionException, DOMException, TransformerFactoryConfigurationError,
+				TransformerException {
+			if (chartData == null)
 				throw new UnsupportedDocumentException("cannot obtain cell data from copied chart");
 
 			Document chartDoc = parseXml(pkg, chartXmlPath);
 			XPath xpath = newXPath(chartDoc);
 
-			updateRef("str", chartDoc, xpath, cells);
-			updateRef("num", chartDoc, xpath, cells);
+			updateRef("str", chartDoc, xpath, chartData);
+			updateRef("num", chartDoc, xpath, chartData);
 
-			XMLDocHelper.save(chartDoc, new File(pkg.getDataDir(), chartXmlPath), true);
+			XMLDocHelper.save(chartDoc, pkg, chartXmlPath, true);
 		}
 
-		private void updateRef(String pf, Document chartDoc, XPath xpath, ArrayList<CellData> cells)
+		private void updateRef(String pf, Document chartDoc, XPath xpath, ChartData chartData)
 				throws XPathExpressionException, UnsupportedDocumentException {
 
 			NodeList nodeList = evaluateXPath(xpath, String.format("//c:%sRef", pf), chartDoc);
@@ -148,7 +141,7 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 				if (!formula.startsWith("Sheet1!"))
 					throw new UnsupportedDocumentException("cannot update chart cache: not referencing Sheet1");
 
-				ArrayList<CellData> data = getColumnDataFromRange1D(cells, formula);
+				List<String> data = getColumnDataFromRange1D(chartData, formula);
 
 				fNode.setTextContent(getModifiedFormula(formula, data.size()));
 
@@ -173,11 +166,11 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 					vNode.setTextContent("0");
 				} else {
 					// normal case
-					for (CellData d : data) {
+					for (String d : data) {
 						Node newPtNode = cacheNode.appendChild(ptNode.cloneNode(true));
 						XMLDocHelper.setNodeAttribute(chartDoc, newPtNode, "idx", Integer.toString(idx++));
 						Node vNode = evaluateXPath(xpath, "c:v", newPtNode).item(0);
-						vNode.setTextContent(d.data);
+						vNode.setTextContent(d);
 					}
 				}
 			}
@@ -202,9 +195,8 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 		private final Pattern cellAddressPattern = Pattern.compile("([A-Z]+)([0-9]+):([A-Z]+)([0-9]+)");
 		private final Pattern cellAbsAddressPattern = Pattern
 				.compile("Sheet1!\\$([A-Z]+)\\$([0-9]+):\\$([A-Z]+)\\$([0-9]+)");
-		private final Pattern cellAddressPattern2 = Pattern.compile("([A-Z]+)([0-9]+)");
 
-		private ArrayList<CellData> getColumnDataFromRange1D(ArrayList<CellData> cells, String formula)
+		private List<String> getColumnDataFromRange1D(ChartData chartData, String formula)
 				throws UnsupportedDocumentException {
 			// formula example: Sheet1!$A$2:$A$4, "Sheet1!" is asserted.
 			formula = formula.substring(7); // $A$2:$A$4
@@ -219,88 +211,23 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 				int rowStart = Integer.parseInt(matcher.group(2));
 				int rowEnd = Integer.parseInt(matcher.group(4));
 
-				ArrayList<CellData> data = new ArrayList<CellData>();
-
-				if (rowStart == rowEnd) {
-					String targetAddr = String.format("%s%d", colId, rowStart);
-					for (CellData cell : cells) {
-						if (targetAddr.equals(cell.address)) {
-							data.add(cell);
-							break;
-						}
-					}
-
-					return data;
-				} else {
-
-					for (CellData cell : cells) {
-						Matcher addrMatcher = cellAddressPattern2.matcher(cell.address);
-						if (addrMatcher.matches()) {
-							String cellColId = addrMatcher.group(1);
-							if (!cellColId.equals(colId))
-								continue;
-
-							int cellRow = Integer.parseInt(addrMatcher.group(2));
-							if (rowStart <= cellRow) {
-								data.add(cell);
-							}
-						}
-					}
-
-					Collections.sort(data);
-
-					// filter cells containing data continuously
-					data = new ArrayList<CellData>(Collections2.filter(data, new Predicate<CellData>() {
-						int prevRow = 0;
-
-						@Override
-						public boolean apply(CellData input) {
-							int rowIdx = Integer.parseInt(input.address.substring(StringUtils.indexOfAny(input.address,
-									"0123456789")));
-							if (prevRow == 0) {
-								prevRow = rowIdx;
-								return true;
-							} else {
-								if (rowIdx - prevRow == 1) {
-									prevRow = rowIdx;
-									return true;
-								} else {
-									return false;
-								}
-							}
-						}
-					}));
-
-					return data;
-				}
+				// range is extended to rows of the loop
+				return chartData.getRange(colId, rowStart, rowEnd);
 			} else {
 				throw new UnsupportedDocumentException("internal error: cannot match cell formula");
 			}
 		}
 
 		private void appendContentType(OOXMLPackage pkg) {
-			InputStream f = null;
-			try {
-				f = new FileInputStream(new File(pkg.getDataDir(), CONTENT_TYPES_XML));
-				Document doc = newDocumentBuilder().parse(f);
+			if (contentTypeAppended)
+				return;
 
-				XPath xpath = newXPath(doc);
-				NodeList nodeList = evaluateXPath(xpath, "//:Default[@Extension='" + DOCXCOD_CHART_XML_EXT + "']", doc);
-				if (!contentTypeAppended && nodeList.getLength() == 0) {
-					Element newChild = doc.createElement("Default");
-					newChild.setAttribute("ContentType", CHART_XML_CONTENTTYPE);
-					newChild.setAttribute("Extension", DOCXCOD_CHART_XML_EXT);
-					doc.getFirstChild().appendChild(newChild);
-
-					XMLDocHelper.save(doc, new File(pkg.getDataDir(), CONTENT_TYPES_XML), true);
-
-					this.contentTypeAppended = true;
-				}
-
-			} catch (Exception e) {
+			try {
+				// [Content_Types].xml is serialized once on save
+				pkg.addDefaultContentType(DOCXCOD_CHART_XML_EXT, CHART_XML_CONTENTTYPE);
+				this.contentTypeAppended = true;
+			} catch (IOException e) {
 				e.printStackTrace();
-			} finally {
-				CloseableHelper.safeClose(f);
 			}
 		}
 
@@ -319,10 +246,10 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 				String embeddedXlsxPath = createChartFromExisting(pkg, chartXmlPath, chartUid);
 
 				// create new xlsx for chart in chartXmlPath
-				ArrayList<CellData> cells = createNewEmbeddedXlsx(pkg, embeddedXlsxPath, chartUid, localRoot);
+				ChartData chartData = createNewEmbeddedXlsx(pkg, embeddedXlsxPath, chartUid, localRoot);
 
-				// update strRef/numRef in chart xml with embeddedXlsx
-				updateChartXML(makeNewChartFilename(chartXmlPath, chartUid), cells);
+				// update strRef/numRef in chart xml with the same data
+				updateChartXML(makeNewChartFilename(chartXmlPath, chartUid), chartData);
 			} else {
 				throw new Exception("cannot append rels entry in document.xml.rels");
 			}
@@ -335,7 +262,7 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 				String embeddedXlsxRid = null;
 				String embeddedXlsxFile = null;
 
-				f = new FileInputStream(new File(pkg.getDataDir(), chartXmlPath));
+				f = pkg.getInputStream(chartXmlPath);
 				Document doc = newDocumentBuilder().parse(f);
 
 				XPath xpath = newXPath(doc);
@@ -348,12 +275,12 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 					embeddedXlsxRid = attrRid.getTextContent();
 				}
 
-				XMLDocHelper.save(doc, new File(pkg.getDataDir(), makeNewChartFilename(chartXmlPath, chartUid)), true);
+				XMLDocHelper.save(doc, pkg, makeNewChartFilename(chartXmlPath, chartUid), true);
 
 				f.close();
 
 				// open newly created xml and modify relationship to xlsx
-				f = new FileInputStream(new File(pkg.getDataDir(), makeRelsPath(chartXmlPath)));
+				f = pkg.getInputStream(makeRelsPath(chartXmlPath));
 				doc = newDocumentBuilder().parse(f);
 				xpath = newXPath(doc);
 				if (embeddedXlsxRid != null) {
@@ -368,8 +295,7 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 								.setTextContent(FilenameUtils.separatorsToUnix(relTarget));
 					}
 				}
-				XMLDocHelper.save(doc,
-						new File(pkg.getDataDir(), makeRelsPath(makeNewChartFilename(chartXmlPath, chartUid))), true);
+				XMLDocHelper.save(doc, pkg, makeRelsPath(makeNewChartFilename(chartXmlPath, chartUid)), true);
 
 				return embeddedXlsxFile;
 
@@ -402,51 +328,32 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 		}
 
 		private String appendToRels(OOXMLPackage pkg, String relPath, String originalRid, String chartUid) {
-			InputStream f = null;
-			try {
-				f = new FileInputStream(new File(pkg.getDataDir(), relPath));
-				Document doc = newDocumentBuilder().parse(f);
-
-				XPath xpath = newXPath(doc);
-				NodeList nodeList = evaluateXPath(xpath, "//:Relationship[@Id='" + originalRid + "']", doc);
-				String chartXmlPath = null;
-				if (nodeList.getLength() != 0) {
-					Node n = nodeList.item(0);
-
-					Node attrTarget = n.getAttributes().getNamedItem("Target");
-					if (attrTarget == null)
+			// relationship part is kept parsed in the package and serialized
+			// once on save. parts of a package may be rendered concurrently.
+			synchronized (pkg) {
+				try {
+					Relationship rel = pkg.getRelationship(relPath, originalRid);
+					if (rel == null)
+						return null;
+
+					if (rel.target == null)
 						throw new IllegalStateException(String.format("no Target attribute in %s with rid %s", relPath,
 								originalRid));
-					chartXmlPath = attrTarget.getTextContent();
-
-					Node attrType = n.getAttributes().getNamedItem("Type");
-					if (attrType == null)
+					if (rel.type == null)
 						throw new IllegalStateException(String.format("no Type attribute in %s with rid %s", relPath,
 								originalRid));
-					String type = attrType.getTextContent();
 
-					Element newChild = doc.createElement("Relationship");
+					pkg.addRelationship(relPath, originalRid + "_" + chartUid, rel.type,
+							FilenameUtils.separatorsToUnix(makeNewChartFilename(rel.target, chartUid)));
 
-					newChild.setAttribute("Id", originalRid + "_" + chartUid);
-					newChild.setAttribute("Target",
-							FilenameUtils.separatorsToUnix(makeNewChartFilename(chartXmlPath, chartUid)));
-					newChild.setAttribute("Type", type);
-					doc.getFirstChild().appendChild(newChild);
-				} else {
-					return null;
-				}
+					return rel.target;
 
-				XMLDocHelper.save(doc, new File(pkg.getDataDir(), relPath), true);
-
-				return chartXmlPath;
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
 
-			} catch (Exception e) {
-				e.printStackTrace();
-			} finally {
-				CloseableHelper.safeClose(f);
+				return null;
 			}
-
-			return null;
 		}
 
 		private String makeNewXlsxFilename(String embeddedXlsxFile, String chartUid) {
@@ -457,44 +364,75 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 			return path + basename + "_" + chartUid + "." + ext;
 		}
 
-		private ArrayList<CellData> createNewEmbeddedXlsx(OOXMLPackage pkg, String embeddedXlsxFile, String chartUid,
+		private ChartData createNewEmbeddedXlsx(OOXMLPackage pkg, String embeddedXlsxFile, String chartUid,
 				Map<String, Object> localRoot) {
-			OOXMLPackage xlsx = new OOXMLPackage();
-			FileInputStream is = null;
-			FileOutputStream os = null;
+			OutputStream os = null;
+			boolean completed = false;
 			try {
-				is = new FileInputStream(new File(pkg.getDataDir(), embeddedXlsxFile));
-				File targetDir = new File(".test/xlsxSample");
-				targetDir.mkdirs();
-				xlsx.load(is, targetDir);
+				// workbook is prepared once per original chart, and a copy of
+				// it is nested in memory for this chart instance. concurrent
+				// renders share no file system state.
+				EmbeddedChartCache.Workbook wb = workbooks.get(pkg, embeddedXlsxFile);
 
-				ArrayList<CellData> cells = new ArrayList<CellData>();
+				// loop of the sheet is evaluated once into typed columns,
+				// which feed both the sheet and the chart caches
+				ChartData chartData = wb.sheet.evaluate(localRoot);
 
-				List<OOXMLProcessor> processors = new ArrayList<OOXMLProcessor>();
-				processors.add(new EmbeddedChartPreprocessor());
-				processors.add(new MagicNodeUnwrapper("xl/worksheets/sheet1.xml"));
-				processors.add(new FreeMarkerRunner("xl/worksheets/sheet1.xml"));
-				processors.add(new EmbeddedChartPostprocessor(cells));
+				// strings repeated in rows are written once. workbook without
+				// shared strings part keeps inline strings.
+				OOXMLPackage xlsx = wb.xlsx.copy();
+				SharedStringTable sst = null;
+				if (wb.sharedStrings != null)
+					sst = new SharedStringTable(wb.sharedStrings);
 
-				xlsx.apply(processors, localRoot);
+				writeSheet(xlsx, wb.sheet, chartData, sst);
+				EmbeddedChartPostprocessor.updateTable1Xml(xlsx, chartData.getTableRange());
 
-				os = new FileOutputStream(new File(pkg.getDataDir(), makeNewXlsxFilename(embeddedXlsxFile, chartUid)));
-				xlsx.save(os);
+				os = pkg.getOutputStream(makeNewXlsxFilename(embeddedXlsxFile, chartUid));
+				xlsx.writeTo(os);
+				os.close();
+				completed = true;
 
-				return cells;
+				return chartData;
 
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
+			} catch (Exception e) {
 				e.printStackTrace();
 			} finally {
-				CloseableHelper.safeClose(is);
-				CloseableHelper.safeClose(os);
+				if (os != null && !completed)
+					PartStore.abort(os);
 			}
 
 			return null;
 		}
 
+		private void writeSheet(OOXMLPackage xlsx, ChartSheetTemplate sheet, ChartData chartData,
+				SharedStringTable sst) throws IOException {
+			OutputStream os = xlsx.getOutputStream(EmbeddedChartCache.SHEET1_XML);
+			boolean completed = false;
+			try {
+				sheet.write(chartData, sst, os);
+				os.close();
+				completed = true;
+			} finally {
+				if (!completed)
+					PartStore.abort(os);
+			}
+
+			if (sst == null)
+				return;
+
+			os = xlsx.getOutputStream(SheetReader.SHARED_STRINGS_XML);
+			completed = false;
+			try {
+				sst.write(os);
+				os.close();
+				completed = true;
+			} finally {
+				if (!completed)
+					PartStore.abort(os);
+			}
+		}
+
 		public String getName() {
 			return functionName;
 		}
@@ -502,17 +440,24 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 
 	private Logger logger = LoggerFactory.getLogger(getClass().getName());
 
+	// prepared workbooks shared by renders of a compiled template, or null
+	private final EmbeddedChartCache chartCache;
+
+	public ChartDirectiveParser() {
+		this(null);
+	}
+
+	ChartDirectiveParser(EmbeddedChartCache chartCache) {
+		this.chartCache = chartCache;
+	}
+
 	@Override
 	public void process(OOXMLPackage pkg, Map<String, Object> rootMap) {
-		if (rootMap != null) {
-			rootMap.put(ChartResFunction.functionName, new ChartResFunction(pkg));
-			rootMap.put(ChartUidFunction.functionName, new ChartUidFunction());
-		}
+		if (rootMap != null)
+			putHelperFunctions(pkg, rootMap);
 
-		InputStream f = null;
 		try {
-			f = new FileInputStream(new File(pkg.getDataDir(), "word/document.xml"));
-			Document doc = newDocumentBuilder().parse(f);
+			Document doc = pkg.getDocument("word/document.xml");
 
 			XPath xpath = newXPath(doc);
 
@@ -522,24 +467,32 @@ public class ChartDirectiveParser implements OOXMLProcessor {
 				InsertChartHelperMagicNode(doc, n);
 			}
 
-			XMLDocHelper.save(doc, new File(pkg.getDataDir(), "word/document.xml"), true);
+			pkg.markDirty("word/document.xml");
 
 		} catch (XPathExpressionException e) {
 			// "접두부는 이름 공간으로 분석되어야 합니다: c"
 			logger.trace("maybe no chart element in this document. pass.");
 		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			CloseableHelper.safeClose(f);
 		}
 	}
 
+	/**
+	 * puts functions called by chart magic nodes. the functions keep state, so
+	 * new ones must be put for each template processing. pass a
+	 * {@link RenderContext} to keep a shared model untouched.
+	 */
+	public void putHelperFunctions(OOXMLPackage pkg, Map<String, Object> rootMap) {
+		rootMap.put(ChartResFunction.functionName, new ChartResFunction(pkg));
+		rootMap.put(ChartUidFunction.functionName, new ChartUidFunction());
+	}
+
 	private enum AsttpPos {
 		BEFORE,
 		AFTER
 	};
 
-	private void InsertChartHelperMagicNode(Document doc, Node chartNode) {
+	void InsertChartHelperMagicNode(Document doc, Node chartNode) {
 		Node attrRid = chartNode.getAttributes().getNamedItem("r:id");
 		String originalRid = attrRid.getTextContent();
 		logger.info("chart rid: {}", originalRid);
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.output.NullWriter;
+import org.krakenapps.docxcod.ChartData.ColumnType;
+import org.krakenapps.docxcod.EmbeddedChartPreprocessor.LoopDescriptor;
+import org.krakenapps.docxcod.util.XMLDocHelper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateMethodModelEx;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+
+/**
+ * sheet1 of an embedded chart workbook prepared once per original chart. the
+ * loop annotated in the sheet is evaluated into {@link ChartData} by a small
+ * template holding only the loop and item expressions, and the sheet is
+ * written from the data without running the whole sheet through FreeMarker
+ * and reading it back.
+ */
+public class ChartSheetTemplate {
+	private static final String ROW_FUNCTION = "docxcodChartRow";
+	private static final String VALUE_VARIABLE = "docxcod_v";
+	private static final String ROWS_PI = "docxcod-rows";
+
+	private static class CellTemplate {
+		private final List<String[]> attributes;
+		private final ColumnType type;
+		private final String expression;
+
+		private CellTemplate(List<String[]> attributes, ColumnType type, String expression) {
+			this.attributes = attributes;
+			this.type = type;
+			this.expression = expression;
+		}
+	}
+
+	// cell address to text of header row
+	private final Map<String, String> header;
+	private final List<String[]> rowAttributes;
+	private final List<CellTemplate> cells;
+
+	// sheet text before and after data rows
+	private final String prefix;
+	private final String suffix;
+
+	private final Template loopTemplate;
+
+	private ChartSheetTemplate(Map<String, String> header, List<String[]> rowAttributes, List<CellTemplate> cells,
+			String prefix, String suffix, Template loopTemplate) {
+		this.header = header;
+		this.rowAttributes = rowAttributes;
+		this.cells = cells;
+		this.prefix = prefix;
+		this.suffix = suffix;
+		this.loopTemplate = loopTemplate;
+	}
+
+	/**
+	 * prepares template from sheet1 and shared strings of the workbook.
+	 * 
+	 * @param name
+	 *            name of the loop template, used in error messages
+	 */
+	public static ChartSheetTemplate prepare(Document sheet1Doc, List<String> sharedStrings, Configuration cfg,
+			String name) throws IOException, UnsupportedDocumentException {
+		try {
+			Map<String, String> header = readHeader(sheet1Doc, sharedStrings);
+
+			// same sheet as the preprocessor makes, with a loop of one row
+			EmbeddedChartPreprocessor preprocessor = new EmbeddedChartPreprocessor();
+			LoopDescriptor loop = preprocessor.readDocxcodAnnotation(sheet1Doc, sharedStrings);
+			preprocessor.modifySheet1Xml(sheet1Doc, loop);
+
+			NodeList magicNodes = sheet1Doc.getElementsByTagName("KMagicNode");
+			Node begin = magicNodes.item(0);
+			Node end = magicNodes.item(1);
+			Node row = begin.getNextSibling();
+
+			List<String[]> rowAttributes = readAttributes(row);
+			List<CellTemplate> cells = new ArrayList<CellTemplate>();
+			for (Node c = row.getFirstChild(); c != null; c = c.getNextSibling()) {
+				if (c instanceof Element)
+					cells.add(readCell((Element) c));
+			}
+
+			// data rows are written in place of the loop
+			Node parent = row.getParentNode();
+			parent.insertBefore(sheet1Doc.createProcessingInstruction(ROWS_PI, ""), begin);
+			parent.removeChild(begin);
+			parent.removeChild(row);
+			parent.removeChild(end);
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			XMLDocHelper.save(sheet1Doc, os, true);
+			String xml = os.toString("UTF-8");
+			int piBegin = xml.indexOf("<?" + ROWS_PI);
+			int piEnd = xml.indexOf("?>", piBegin) + 2;
+
+			String text = buildLoopTemplate(loop, cells);
+			Template t = new Template(name, new StringReader(text), cfg);
+
+			return new ChartSheetTemplate(header, rowAttributes, cells, xml.substring(0, piBegin),
+					xml.substring(piEnd), t);
+		} catch (UnsupportedDocumentException e) {
+			throw e;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("cannot prepare chart sheet " + name, e);
+		}
+	}
+
+	/**
+	 * evaluates the loop against the model. model is not modified.
+	 */
+	public ChartData evaluate(Map<String, Object> model) throws IOException {
+		List<ChartData.Column> columns = new ArrayList<ChartData.Column>(cells.size());
+		for (int i = 0; i < cells.size(); i++)
+			columns.add(new ChartData.Column(CellGrid.columnName(i), cells.get(i).type));
+
+		final ChartData data = new ChartData(header, columns);
+
+		RenderContext ctx = new RenderContext(model);
+		ctx.put(ROW_FUNCTION, new TemplateMethodModelEx() {
+			@Override
+			public Object exec(@SuppressWarnings("rawtypes") List arguments) throws TemplateModelException {
+				List<String> values = new ArrayList<String>(arguments.size());
+				for (Object arg : arguments) {
+					if (arg instanceof TemplateScalarModel)
+						values.add(((TemplateScalarModel) arg).getAsString());
+					else
+						values.add(arg == null ? "" : arg.toString());
+				}
+				data.addRow(values);
+				return "";
+			}
+		});
+
+		try {
+			loopTemplate.process(FreeMarkerRunner.toDataModel(loopTemplate, ctx), new NullWriter());
+		} catch (TemplateException e) {
+			throw new IOException("chart data evaluation failed: " + loopTemplate.getName(), e);
+		}
+		return data;
+	}
+
+	/**
+	 * writes sheet1 with the data, using inline strings. os is not closed.
+	 */
+	public void write(ChartData data, OutputStream os) throws IOException {
+		write(data, null, os);
+	}
+
+	/**
+	 * writes sheet1 with the data. string cells refer to sst if it is given,
+	 * otherwise they are written as inline strings. os is not closed.
+	 */
+	public void write(ChartData data, SharedStringTable sst, OutputStream os) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+		writer.write(prefix);
+
+		List<ChartData.Column> columns = data.getColumns();
+		for (int i = 0; i < data.getRowCount(); i++) {
+			String r = Integer.toString(i + 2);
+
+			writer.write("<row");
+			for (String[] attr : rowAttributes)
+				writeAttribute(writer, attr[0], attr[0].equals("r") ? r : attr[1]);
+			writer.write(">");
+
+			for (int j = 0; j < cells.size(); j++) {
+				CellTemplate cell = cells.get(j);
+				ChartData.Column column = columns.get(j);
+
+				boolean shared = sst != null && cell.type == ColumnType.STRING;
+				boolean typed = false;
+				writer.write("<c");
+				for (String[] attr : cell.attributes) {
+					if (attr[0].equals("r")) {
+						// letters and digits need no escape
+						writer.write(" r=\"");
+						writer.write(column.name);
+						writer.write(r);
+						writer.write('"');
+					} else if (attr[0].equals("t") && shared) {
+						writeAttribute(writer, attr[0], "s");
+						typed = true;
+					} else {
+						writeAttribute(writer, attr[0], attr[1]);
+					}
+				}
+				if (shared && !typed)
+					writeAttribute(writer, "t", "s");
+
+				String value = data.getValue(j, i);
+				if (shared) {
+					writer.write("><v>");
+					writer.write(Integer.toString(sst.add(value)));
+					writer.write("</v></c>");
+				} else if (cell.type == ColumnType.STRING) {
+					writer.write("><is><t>");
+					writeText(writer, value);
+					writer.write("</t></is></c>");
+				} else if (cell.type == ColumnType.NUMBER) {
+					writer.write("><v>");
+					writeText(writer, value);
+					writer.write("</v></c>");
+				} else {
+					writer.write("/>");
+				}
+			}
+
+			writer.write("</row>");
+		}
+
+		writer.write(suffix);
+		writer.flush();
+	}
+
+	private static String buildLoopTemplate(LoopDescriptor loop, List<CellTemplate> cells) {
+		StringBuilder sb = new StringBuilder();
+		sb.append('<').append(loop.loopCoordinator).append('>');
+
+		// each item is captured as text, same as interpolated in the cell
+		List<String> variables = new ArrayList<String>();
+		for (CellTemplate cell : cells) {
+			if (cell.type == ColumnType.EMPTY)
+				continue;
+			String v = VALUE_VARIABLE + variables.size();
+			variables.add(v);
+			sb.append("<#assign ").append(v).append('>').append(cell.expression).append("</#assign>");
+		}
+
+		sb.append("${").append(ROW_FUNCTION).append('(');
+		for (int i = 0; i < variables.size(); i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(variables.get(i));
+		}
+		sb.append(")}</#list>");
+		return sb.toString();
+	}
+
+	private static Map<String, String> readHeader(Document sheet1Doc, List<String> sharedStrings) {
+		Map<String, String> header = new HashMap<String, String>();
+		NodeList rows = sheet1Doc.getElementsByTagNameNS("*", "row");
+		for (int i = 0; i < rows.getLength(); i++) {
+			Element row = (Element) rows.item(i);
+			if (!"1".equals(row.getAttribute("r")))
+				continue;
+
+			for (Node c = row.getFirstChild(); c != null; c = c.getNextSibling()) {
+				if (c instanceof Element)
+					header.put(((Element) c).getAttribute("r"), readCellText((Element) c, sharedStrings));
+			}
+		}
+		return header;
+	}
+
+	private static String readCellText(Element c, List<String> sharedStrings) {
+		String type = c.getAttribute("t");
+		if ("inlineStr".equals(type)) {
+			Element is = findChild(c, "is");
+			Element t = is != null ? findChild(is, "t") : null;
+			return t != null ? t.getTextContent() : "";
+		}
+
+		Element v = findChild(c, "v");
+		if (v == null)
+			return "";
+		if ("s".equals(type)) {
+			int index = Integer.parseInt(v.getTextContent().trim());
+			return index < sharedStrings.size() ? sharedStrings.get(index) : "";
+		}
+		return v.getTextContent();
+	}
+
+	private static CellTemplate readCell(Element c) {
+		List<String[]> attributes = readAttributes(c);
+		Element is = findChild(c, "is");
+		if (is != null)
+			return new CellTemplate(attributes, ColumnType.STRING, findChild(is, "t").getTextContent());
+
+		Element v = findChild(c, "v");
+		if (v != null)
+			return new CellTemplate(attributes, ColumnType.NUMBER, v.getTextContent());
+
+		return new CellTemplate(attributes, ColumnType.EMPTY, null);
+	}
+
+	private static List<String[]> readAttributes(Node n) {
+		List<String[]> attributes = new ArrayList<String[]>();
+		NamedNodeMap attrs = n.getAttributes();
+		for (int i = 0; i < attrs.getLength(); i++) {
+			Node a = attrs.item(i);
+			attributes.add(new String[] { a.getNodeName(), a.getNodeValue() });
+		}
+		return attributes;
+	}
+
+	private static Element findChild(Node parent, String localName) {
+		for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (!(n instanceof Element))
+				continue;
+			String name = n.getLocalName() != null ? n.getLocalName() : n.getNodeName();
+			if (name.equals(localName))
+				return (Element) n;
+		}
+		return null;
+	}
+
+	private static void writeAttribute(Writer writer, String name, String value) throws IOException {
+		writer.write(' ');
+		writer.write(name);
+		writer.write("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+			case '&':
+				writer.write("&amp;");
+				break;
+			case '<':
+				writer.write("&lt;");
+				break;
+			case '"':
+				writer.write("&quot;");
+				break;
+			default:
+				writer.write(ch);
+			}
+		}
+		writer.write('"');
+	}
+
+	static void writeText(Writer writer, String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			switch (ch) {
+			case '&':
+				writer.write("&amp;");
+				break;
+			case '<':
+				writer.write("&lt;");
+				break;
+			case '>':
+				writer.write("&gt;");
+				break;
+			default:
+				writer.write(ch);
+			}
+		}
+	}
+}
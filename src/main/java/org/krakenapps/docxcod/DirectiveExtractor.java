@@ -19,8 +19,6 @@ import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newDocumentBuilder;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -50,7 +48,7 @@ public class DirectiveExtractor implements OOXMLProcessor {
 	private void extractField(OOXMLPackage pkg) throws TransformerFactoryConfigurationError {
 		InputStream f = null;
 		try {
-			f = new FileInputStream(new File(pkg.getDataDir(), "word/document.xml"));
+			f = pkg.getInputStream("word/document.xml");
 			Document doc = newDocumentBuilder().parse(f);
 
 			XPath xpath = newXPath(doc);
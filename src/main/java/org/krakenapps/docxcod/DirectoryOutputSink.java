@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.krakenapps.docxcod.PartStore.Abortable;
+
+/**
+ * stores each document as a file under the target directory. documents are
+ * written to sibling temporary files and renamed on close, so a file in the
+ * directory is always complete.
+ */
+public class DirectoryOutputSink extends OutputSink {
+	private final File targetDir;
+
+	public DirectoryOutputSink(File targetDir) {
+		this.targetDir = targetDir;
+	}
+
+	public File getTargetDir() {
+		return targetDir;
+	}
+
+	@Override
+	public OutputStream openOutputStream(String name) throws IOException {
+		final File target = new File(targetDir, PartStore.normalizeName(name));
+		final File temp = new File(target.getPath() + ".new");
+		File parent = target.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("cannot create directory: " + parent);
+
+		class RenamingOutputStream extends FilterOutputStream implements Abortable {
+			private boolean closed = false;
+
+			RenamingOutputStream() throws IOException {
+				super(new BufferedOutputStream(new FileOutputStream(temp)));
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				super.close();
+
+				if (target.exists() && !target.delete())
+					throw new IOException("deleting old file failed: " + target);
+				if (!temp.renameTo(target))
+					throw new IOException("renaming new file failed: " + temp);
+			}
+
+			@Override
+			public void abort() {
+				if (closed)
+					return;
+				closed = true;
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				temp.delete();
+			}
+		}
+
+		return new RenamingOutputStream();
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+}
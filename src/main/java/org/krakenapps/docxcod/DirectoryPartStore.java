@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.krakenapps.docxcod.util.ZipHelper;
+
+/**
+ * stores parts as plain files under the data directory. this is the storage
+ * used by {@link OOXMLPackage#load(InputStream, File)}.
+ */
+public class DirectoryPartStore extends PartStore {
+	private final File dataDir;
+
+	public DirectoryPartStore(File dataDir) {
+		this.dataDir = dataDir;
+	}
+
+	public File getDataDir() {
+		return dataDir;
+	}
+
+	public File getFile(String name) {
+		return new File(dataDir, normalizeName(name));
+	}
+
+	@Override
+	public boolean exists(String name) {
+		return getFile(name).isFile();
+	}
+
+	@Override
+	public InputStream openInputStream(String name) throws IOException {
+		return new BufferedInputStream(new FileInputStream(getFile(name)));
+	}
+
+	@Override
+	public OutputStream openOutputStream(String name) throws IOException {
+		final File target = getFile(name);
+		final File temp = new File(target.getPath() + ".new");
+		target.getParentFile().mkdirs();
+
+		// write to sibling file and replace the original on close, so that
+		// the part can be read while it is being rewritten.
+		class ReplacingOutputStream extends FileOutputStream implements Abortable {
+			private boolean closed = false;
+
+			ReplacingOutputStream() throws FileNotFoundException {
+				super(temp);
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				super.close();
+
+				if (target.exists() && !target.delete())
+					throw new IOException("deleting old file failed: " + target);
+				if (!temp.renameTo(target))
+					throw new IOException("renaming new file failed: " + temp);
+			}
+
+			@Override
+			public void abort() {
+				if (closed)
+					return;
+				closed = true;
+				try {
+					super.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				temp.delete();
+			}
+		}
+
+		return new ReplacingOutputStream();
+	}
+
+	@Override
+	public boolean delete(String name) {
+		return getFile(name).delete();
+	}
+
+	@Override
+	public long lastModified(String name) {
+		return getFile(name).lastModified();
+	}
+
+	@Override
+	public long length(String name) {
+		File f = getFile(name);
+		return f.isFile() ? f.length() : -1L;
+	}
+
+	@Override
+	public List<String> listNames() {
+		ArrayList<File> files = new ArrayList<File>();
+		ZipHelper.getFilesRecursivelyIn(dataDir, files);
+
+		List<String> names = new ArrayList<String>(files.size());
+		for (File f : files) {
+			if (f.isDirectory())
+				continue;
+			names.add(normalizeName(ZipHelper.extractSubPath(f, dataDir)));
+		}
+		return names;
+	}
+}
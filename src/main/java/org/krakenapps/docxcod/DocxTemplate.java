@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.krakenapps.docxcod.OOXMLPackage.TidyMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * docx template compiled once and rendered many times.
+ * {@link #compile(InputStream)} runs structural processors which depend only
+ * on the template, and parses the resulting parts as FreeMarker templates.
+ * {@link #render(Map, OutputStream)} can be called concurrently.
+ *
+ * main document, headers, footers, footnotes and endnotes are templated. if
+ * an executor is given, they are compiled and rendered concurrently. charts
+ * are handled in main document only, so relationships and content types are
+ * added by one part in its order.
+ */
+public class DocxTemplate {
+	private static final String DOCUMENT_XML = "word/document.xml";
+	private static final String REL_TYPE_PREFIX = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/";
+
+	// relationship types of parts which can have merge fields
+	private static final List<String> TEMPLATE_PART_TYPES = Arrays.asList(REL_TYPE_PREFIX + "officeDocument",
+			REL_TYPE_PREFIX + "header", REL_TYPE_PREFIX + "footer", REL_TYPE_PREFIX + "footnotes", REL_TYPE_PREFIX
+					+ "endnotes");
+
+	private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+	private final OOXMLPackage compiled;
+
+	// part name to parsed template
+	private final Map<String, Template> templates;
+
+	private final ExecutorService executor;
+
+	// embedded chart workbooks prepared once for all renders
+	private final EmbeddedChartCache chartCache;
+
+	private DocxTemplate(OOXMLPackage compiled, Map<String, Template> templates, Configuration cfg,
+			ExecutorService executor) {
+		this.compiled = compiled;
+		this.templates = templates;
+		this.executor = executor;
+		this.chartCache = new EmbeddedChartCache(cfg);
+	}
+
+	public static DocxTemplate compile(InputStream is) throws IOException {
+		return compile(is, FreeMarkerRunner.getDefaultConfiguration());
+	}
+
+	public static DocxTemplate compile(InputStream is, Configuration cfg) throws IOException {
+		return compile(is, cfg, null);
+	}
+
+	/**
+	 * @param executor
+	 *            executor compiling and rendering parts concurrently, or null
+	 *            to process them one by one in the calling thread. it is not
+	 *            shut down by the template.
+	 */
+	public static DocxTemplate compile(InputStream is, final Configuration cfg, ExecutorService executor)
+			throws IOException {
+		final OOXMLPackage pkg = new OOXMLPackage();
+		// parts not templated are copied to the output as they are
+		pkg.setTidyMode(TidyMode.LAZY);
+		pkg.loadInMemory(is);
+
+		List<String> parts = pkg.findParts(TEMPLATE_PART_TYPES);
+		if (parts.isEmpty())
+			parts.add(DOCUMENT_XML);
+
+		List<Callable<Template>> tasks = new ArrayList<Callable<Template>>();
+		for (final String part : parts) {
+			tasks.add(new Callable<Template>() {
+				@Override
+				public Template call() throws Exception {
+					// failure is reported, not rendered as uncompiled part
+					new TemplateCompiler(part).compile(pkg, new HashMap<String, Object>());
+					return FreeMarkerRunner.getTemplate(cfg, pkg, part);
+				}
+			});
+		}
+
+		List<Template> results = invokeAll(executor, tasks);
+		Map<String, Template> templates = new LinkedHashMap<String, Template>();
+		for (int i = 0; i < parts.size(); i++)
+			templates.put(parts.get(i), results.get(i));
+
+		return new DocxTemplate(pkg, templates, cfg, executor);
+	}
+
+	public Set<String> getTemplatedParts() {
+		return Collections.unmodifiableSet(templates.keySet());
+	}
+
+	/**
+	 * renders template with given model and writes docx to out. model is
+	 * neither modified nor copied, so one model can be rendered concurrently.
+	 */
+	public void render(Map<String, Object> model, OutputStream out) throws IOException, TemplateException {
+		final OOXMLPackage pkg = compiled.copy();
+
+		// helper functions keep state of this render in the overlay
+		final RenderContext rootMap = new RenderContext(model);
+		new ChartDirectiveParser(chartCache).putHelperFunctions(pkg, rootMap);
+
+		try {
+			if (executor == null || templates.size() < 2) {
+				// templates are processed while the package is written,
+				// straight into zip entries
+				for (Map.Entry<String, Template> e : templates.entrySet()) {
+					logger.trace("render: deferring {}", e.getKey());
+					pkg.setDeferredPart(e.getKey(), FreeMarkerRunner.newPartWriter(e.getValue(), rootMap));
+				}
+			} else {
+				// parts are rendered into the package concurrently, then written
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (final Map.Entry<String, Template> e : templates.entrySet()) {
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							renderPart(pkg, e.getKey(), e.getValue(), rootMap);
+							return null;
+						}
+					});
+				}
+				invokeAll(executor, tasks);
+			}
+
+			pkg.writeTo(out);
+		} catch (IOException e) {
+			if (e.getCause() instanceof TemplateException)
+				throw (TemplateException) e.getCause();
+			throw e;
+		}
+	}
+
+	private void renderPart(OOXMLPackage pkg, String part, Template t, Map<String, Object> rootMap)
+			throws IOException {
+		logger.trace("render: {}", part);
+		OutputStream os = pkg.getOutputStream(part);
+		boolean completed = false;
+		try {
+			FreeMarkerRunner.newPartWriter(t, rootMap).write(os);
+			os.close();
+			completed = true;
+		} finally {
+			if (!completed)
+				PartStore.abort(os);
+		}
+	}
+
+	/**
+	 * runs tasks in the executor, or in the calling thread if executor is
+	 * null, and returns results in order of tasks. exception of a task is
+	 * thrown as {@link IOException}.
+	 */
+	private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws IOException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if (executor == null) {
+				for (Callable<T> task : tasks)
+					results.add(task.call());
+				return results;
+			}
+
+			for (Future<T> f : executor.invokeAll(tasks))
+				results.add(f.get());
+			return results;
+		} catch (ExecutionException e) {
+			throw toIOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while processing parts");
+		} catch (Exception e) {
+			throw toIOException(e);
+		}
+	}
+
+	private static IOException toIOException(Throwable t) {
+		if (t instanceof IOException)
+			return (IOException) t;
+		return new IOException(t.getMessage(), t);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import static org.krakenapps.docxcod.util.XMLDocHelper.parseXml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.krakenapps.docxcod.OOXMLPackage.TidyMode;
+import org.krakenapps.docxcod.util.CloseableHelper;
+
+import freemarker.template.Configuration;
+
+/**
+ * embedded chart workbooks prepared for rendering. preparation depends only
+ * on the original workbook, so it runs once per original chart and every
+ * chart instance writes its data into a copy of the workbook.
+ *
+ * entries are keyed by workbook part name, so a cache must be used with one
+ * template only: copies of a compiled package or a single package.
+ */
+public class EmbeddedChartCache {
+	public static final String SHEET1_XML = "xl/worksheets/sheet1.xml";
+
+	public static class Workbook {
+		// original in-memory package. it is copied, never modified.
+		public final OOXMLPackage xlsx;
+		public final ChartSheetTemplate sheet;
+		// shared strings of the original workbook, or null if it has none
+		public final SharedStringTable.Original sharedStrings;
+
+		private Workbook(OOXMLPackage xlsx, ChartSheetTemplate sheet, SharedStringTable.Original sharedStrings) {
+			this.xlsx = xlsx;
+			this.sheet = sheet;
+			this.sharedStrings = sharedStrings;
+		}
+	}
+
+	private final ConcurrentMap<String, Workbook> workbooks = new ConcurrentHashMap<String, Workbook>();
+
+	// configuration of loop templates of chart sheets
+	private final Configuration cfg;
+
+	public EmbeddedChartCache() {
+		this(FreeMarkerRunner.getDefaultConfiguration());
+	}
+
+	/**
+	 * @param cfg
+	 *            configuration of the document template, so that chart data
+	 *            is formatted same as the document
+	 */
+	public EmbeddedChartCache(Configuration cfg) {
+		this.cfg = cfg;
+	}
+
+	/**
+	 * returns prepared workbook of the embedded xlsx part. concurrent first
+	 * calls may prepare it more than once, but all of them get the same one.
+	 */
+	public Workbook get(OOXMLPackage pkg, String xlsxPart) throws IOException {
+		String key = PartStore.normalizeName(xlsxPart);
+		Workbook wb = workbooks.get(key);
+		if (wb != null)
+			return wb;
+
+		wb = prepare(pkg, key, pkg.getTidyMode());
+		Workbook old = workbooks.putIfAbsent(key, wb);
+		return old != null ? old : wb;
+	}
+
+	public int size() {
+		return workbooks.size();
+	}
+
+	private Workbook prepare(OOXMLPackage pkg, String xlsxPart, TidyMode tidyMode) throws IOException {
+		OOXMLPackage xlsx = new OOXMLPackage();
+		xlsx.setTidyMode(tidyMode);
+		InputStream is = null;
+		try {
+			is = pkg.getInputStream(xlsxPart);
+			xlsx.loadInMemory(is);
+		} finally {
+			CloseableHelper.safeClose(is);
+		}
+
+		try {
+			List<String> sharedStrings = SheetReader.readSharedStrings(xlsx);
+			ChartSheetTemplate sheet = ChartSheetTemplate.prepare(parseXml(xlsx, SHEET1_XML), sharedStrings, cfg,
+					xlsxPart);
+			SharedStringTable.Original original = null;
+			if (xlsx.hasPart(SheetReader.SHARED_STRINGS_XML))
+				original = SharedStringTable.Original.read(xlsx, sharedStrings);
+			return new Workbook(xlsx, sheet, original);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("cannot prepare chart workbook " + xlsxPart, e);
+		}
+	}
+}
@@ -15,37 +15,43 @@
  */
 package org.krakenapps.docxcod;
 
-import static org.krakenapps.docxcod.Utils.readSharedStrings;
 import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPath;
-import static org.krakenapps.docxcod.util.XMLDocHelper.getNodeAttribute;
-import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.parseXml;
 import static org.krakenapps.docxcod.util.XMLDocHelper.setNodeAttribute;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 
+import org.krakenapps.docxcod.util.CloseableHelper;
 import org.krakenapps.docxcod.util.XMLDocHelper;
-import org.krakenapps.docxcod.util.XMLDocHelper.NodeListIterAdapter;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 public class EmbeddedChartPostprocessor implements OOXMLProcessor {
 
 	private final ArrayList<CellData> cells;
+	private final List<String> sharedStrings;
 
 	public EmbeddedChartPostprocessor(ArrayList<CellData> cells) {
+		this(cells, null);
+	}
+
+	/**
+	 * @param sharedStrings
+	 *            shared strings of the workbook read beforehand, or null to
+	 *            read them from the package
+	 */
+	public EmbeddedChartPostprocessor(ArrayList<CellData> cells, List<String> sharedStrings) {
 		this.cells = cells;
+		this.sharedStrings = sharedStrings;
 	}
 
 	@Override
@@ -55,95 +61,43 @@ public class EmbeddedChartPostprocessor implements OOXMLProcessor {
 			// read sheet1.xml
 			String sheetXmlFile = "xl/worksheets/sheet1.xml";
 
-			Document sheet1Doc = parseXml(pkg, sheetXmlFile);
-			Document sharedStringsDoc = parseXml(pkg, "xl/sharedStrings.xml");
-
-			List<String> sharedStrings = readSharedStrings(sharedStringsDoc);
+			List<String> sharedStrings = this.sharedStrings;
+			if (sharedStrings == null)
+				sharedStrings = SheetReader.readSharedStrings(pkg);
 
-			readSheetData(sheet1Doc, sharedStrings, cells);
-
-			String tableRange = getTableRange(cells);
+			CellGrid grid = new CellGrid();
+			readSheetData(pkg, sheetXmlFile, sharedStrings, cells, grid);
 
 			// update xl/tables/table1.xml
-			updateTable1Xml(pkg, tableRange);
+			updateTable1Xml(pkg, grid.getTableRange());
 
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	private void updateTable1Xml(OOXMLPackage pkg, String tableRange) throws XPathExpressionException, DOMException,
-			TransformerFactoryConfigurationError, TransformerException {
+	static void updateTable1Xml(OOXMLPackage pkg, String tableRange) throws IOException, XPathExpressionException,
+			DOMException, TransformerFactoryConfigurationError, TransformerException {
 		Document table1Doc = parseXml(pkg, "xl/tables/table1.xml");
 		Node tableNode = evaluateXPath(table1Doc, "/DEF:table").item(0);
 		setNodeAttribute(table1Doc, tableNode, "ref", tableRange);
-		XMLDocHelper.save(table1Doc, new File(pkg.getDataDir(), "xl/tables/table1.xml"), false);
+		XMLDocHelper.save(table1Doc, pkg, "xl/tables/table1.xml", false);
 	}
 
-	private String getTableRange(List<CellData> cells) {
-		int row = 0;
-		int col = 0;
-
-		HashMap<String, CellData> cellAddrs = new HashMap<String, CellData>();
-		for (CellData c : cells) {
-			cellAddrs.put(c.address, c);
-		}
-
-		while (doesCellContainsData(row + 1, col, cellAddrs)) {
-			row++;
-		}
-		while (doesCellContainsData(row, col + 1, cellAddrs)) {
-			col++;
-		}
-
-		return String.format("A1:%s", getCellAddr(row, col));
-	}
-
-	private boolean doesCellContainsData(int row, int col, HashMap<String, CellData> cellAddrs) {
-		String cellAddr = getCellAddr(row, col);
-		return cellAddrs.containsKey(cellAddr) && !cellAddrs.get(cellAddr).data.isEmpty();
-	}
-
-	private String getCellAddr(int row, int col) {
-		char cellIdx = (char) ('A' + col);
-		return cellIdx + Integer.toString(row + 1);
-	}
-
-	private void readSheetData(Document sheet1Doc, List<String> sharedStrings, ArrayList<CellData> cells)
-			throws XPathExpressionException {
-		XPath xpath = newXPath(sheet1Doc);
-		NodeList cellNodes = evaluateXPath(xpath, "//DEF:c", sheet1Doc);
-		cells.ensureCapacity(cellNodes.getLength());
-
-		for (Node n : new NodeListIterAdapter(cellNodes)) {
-			String address;
-			String data;
-
-			address = getNodeAttribute(n, "r");
-			String typeAttr = getNodeAttribute(n, "t");
-			if ("s".equals(typeAttr)) {
-				Node item = evaluateXPath(xpath, "DEF:v", n).item(0);
-				if (item != null) {
-					Integer sstIdx = Integer.parseInt(item.getTextContent());
-					if (sharedStrings.size() < sstIdx)
-						data = "";
-					else
-						data = sharedStrings.get(sstIdx);
-				} else {
-					data = "";
+	private void readSheetData(OOXMLPackage pkg, String sheetXmlFile, List<String> sharedStrings,
+			final ArrayList<CellData> cells, final CellGrid grid) throws IOException {
+		InputStream is = null;
+		try {
+			is = pkg.getInputStream(sheetXmlFile);
+			SheetReader.readCells(is, sharedStrings, new SheetReader.CellHandler() {
+				@Override
+				public void onCell(int row, int col, String text) {
+					cells.add(new CellData(CellGrid.address(row, col), text));
+					grid.put(row, col, text);
 				}
-			} else if ("inlineStr".equals(typeAttr)) {
-				data = evaluateXPath(xpath, "DEF:is/DEF:t", n).item(0).getTextContent();
-			} else {
-				Node item = evaluateXPath(xpath, "DEF:v", n).item(0);
-				if (item != null)
-					data = item.getTextContent();
-				else 
-					data = "";
-			}
-
-			cells.add(new CellData(address, data));
+			});
+		} finally {
+			CloseableHelper.safeClose(is);
 		}
 	}
-
 }
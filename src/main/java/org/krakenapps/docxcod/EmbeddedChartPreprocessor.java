@@ -15,14 +15,12 @@
  */
 package org.krakenapps.docxcod;
 
-import static org.krakenapps.docxcod.Utils.readSharedStrings;
 import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.getNodeAttribute;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.parseXml;
 import static org.krakenapps.docxcod.util.XMLDocHelper.setNodeAttribute;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -45,6 +43,7 @@ import org.w3c.dom.NodeList;
 
 import freemarker.template.TemplateMethodModelEx;
 import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateNumberModel;
 
 public class EmbeddedChartPreprocessor implements OOXMLProcessor {
 
@@ -90,41 +89,57 @@ public class EmbeddedChartPreprocessor implements OOXMLProcessor {
 
 		public static final String name = "EmbChartCellRef";
 
+		// functions are put for each sheet processing, and called by one
+		// thread rendering it
+		private final StringBuilder sb = new StringBuilder(12);
+
 		@SuppressWarnings("rawtypes")
 		@Override
 		public Object exec(List arguments) throws TemplateModelException {
-			// TODO generate A1 type cell reference while increasing row ref.
-			// arg1 : row count
-			// arg2 : cell count
-			int rowCount = Integer.parseInt(arguments.get(0).toString());
-			char cellIdx = (char) ('A' + (-1 + Integer.parseInt(arguments.get(1).toString())));
-			return String.format("%s%d", cellIdx, rowCount);
+			// generates A1 type cell reference while increasing row ref.
+			// arg1 : row count (1 based)
+			// arg2 : cell count (1 based)
+			int rowCount = toInt(arguments.get(0));
+			int cellCount = toInt(arguments.get(1));
+			sb.setLength(0);
+			return CellGrid.appendAddress(sb, rowCount - 1, cellCount - 1).toString();
 		}
 
+		private static int toInt(Object arg) throws TemplateModelException {
+			if (arg instanceof TemplateNumberModel)
+				return ((TemplateNumberModel) arg).getAsNumber().intValue();
+			return Integer.parseInt(arg.toString());
+		}
 	}
 
 	private static final Pattern cellAddressPattern = Pattern.compile("[A-Z]+[0-9]+:([A-Z]+)([0-9]+)");
 	private Logger logger = LoggerFactory.getLogger(this.getClass().getName());
 
+	/**
+	 * puts functions called by the preprocessed sheet. the functions keep row
+	 * count, so new ones must be put for each sheet processing.
+	 */
+	public static void putHelperFunctions(Map<String, Object> rootMap) {
+		AtomicInteger atomicInteger = new AtomicInteger(1);
+		rootMap.put(EmbChartGetRowCntFunc.name, new EmbChartGetRowCntFunc(atomicInteger));
+		rootMap.put(EmbChartIncRowCntFunc.name, new EmbChartIncRowCntFunc(atomicInteger));
+		rootMap.put(EmbChartCellRefFunc.name, new EmbChartCellRefFunc());
+	}
+
 	@Override
 	public void process(OOXMLPackage pkg, Map<String, Object> rootMap) {
 		try {
-			if (rootMap != null) {
-				AtomicInteger atomicInteger = new AtomicInteger(1);
-				rootMap.put(EmbChartGetRowCntFunc.name, new EmbChartGetRowCntFunc(atomicInteger));
-				rootMap.put(EmbChartIncRowCntFunc.name, new EmbChartIncRowCntFunc(atomicInteger));
-				rootMap.put(EmbChartCellRefFunc.name, new EmbChartCellRefFunc());
-			}
+			if (rootMap != null)
+				putHelperFunctions(rootMap);
 
 			Document sheet1Doc = parseXml(pkg, "xl/worksheets/sheet1.xml");
-			Document sharedStringsDoc = parseXml(pkg, "xl/sharedStrings.xml");
 
-			List<String> sharedStrings = readSharedStrings(sharedStringsDoc);
+			List<String> sharedStrings = SheetReader.readSharedStrings(pkg);
 			LoopDescriptor loopDescriptor = readDocxcodAnnotation(sheet1Doc, sharedStrings);
 
 			modifySheet1Xml(sheet1Doc, loopDescriptor);
 
-			XMLDocHelper.save(sheet1Doc, new File(pkg.getDataDir(), "xl/worksheets/sheet1.xml"), true);
+			XMLDocHelper.save(sheet1Doc, pkg, "xl/worksheets/sheet1.xml", true);
 
 			logger.info("sheet modification completed");
 
@@ -134,7 +149,7 @@ public class EmbeddedChartPreprocessor implements OOXMLProcessor {
 		}
 	}
 
-	private void modifySheet1Xml(Document sheet1Doc, LoopDescriptor loopDesc) throws XPathExpressionException,
+	void modifySheet1Xml(Document sheet1Doc, LoopDescriptor loopDesc) throws XPathExpressionException,
 			UnsupportedDocumentException {
 		XPath xpath = newXPath(sheet1Doc);
 
@@ -155,7 +170,7 @@ public class EmbeddedChartPreprocessor implements OOXMLProcessor {
 		Matcher matcher = cellAddressPattern.matcher(dim);
 		int rightEnd = 16;
 		if (matcher.matches()) {
-			rightEnd = matcher.group(1).charAt(0) - 'A' + 1;
+			rightEnd = CellGrid.columnIndex(matcher.group(1)) + 1;
 		}
 
 		setNodeAttribute(sheet1Doc, rowTemplate, "r", String.format("${%s()}", EmbChartIncRowCntFunc.name));
@@ -262,7 +277,7 @@ public class EmbeddedChartPreprocessor implements OOXMLProcessor {
 
 	}
 
-	private static class LoopDescriptor {
+	static class LoopDescriptor {
 		public final String loopCoordinator;
 		public final ArrayList<ItemDescriptor> itemDescriptors;
 
@@ -279,7 +294,7 @@ public class EmbeddedChartPreprocessor implements OOXMLProcessor {
 
 	}
 
-	private LoopDescriptor readDocxcodAnnotation(Document sheet1Doc, List<String> sst) throws XPathExpressionException,
+	LoopDescriptor readDocxcodAnnotation(Document sheet1Doc, List<String> sst) throws XPathExpressionException,
 			UnsupportedDocumentException {
 
 		XPath xpath = newXPath(sheet1Doc);
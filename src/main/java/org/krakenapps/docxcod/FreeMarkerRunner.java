@@ -15,70 +15,145 @@
  */
 package org.krakenapps.docxcod;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import freemarker.cache.TemplateLoader;
 import freemarker.template.Configuration;
 import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
 public class FreeMarkerRunner implements OOXMLProcessor {
+	private static volatile Configuration defaultConfiguration = null;
+
 	private Logger logger = LoggerFactory.getLogger(getClass().getName());
 	private Set<String> targets = new HashSet<String>();
+	private Configuration cfg;
+	private boolean streaming = false;
 
 	public FreeMarkerRunner(String string) {
+		this(string, null);
+	}
+
+	/**
+	 * @param cfg
+	 *            configuration used for the runner, or null for the default
+	 *            configuration
+	 */
+	public FreeMarkerRunner(String string, Configuration cfg) {
 		targets.add(FilenameUtils.normalize(string));
+		this.cfg = cfg;
 	}
-	
-	@Override
-	public void process(OOXMLPackage docx, Map<String, Object> rootMap) {
-		// TODO Auto-generated method stub
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * if set, output is not stored in the package but streamed into the zip
+	 * entry when the package is saved. use this when the runner is the last
+	 * processor touching the part; memory use then does not grow with the
+	 * size of the output.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * returns configuration shared by runners. it caches parsed parts by
+	 * content and keeps object wrapper introspection across renders.
+	 */
+	public static Configuration getDefaultConfiguration() {
+		Configuration cfg = defaultConfiguration;
+		if (cfg == null) {
+			synchronized (FreeMarkerRunner.class) {
+				if (defaultConfiguration == null)
+					defaultConfiguration = createConfiguration();
+				cfg = defaultConfiguration;
+			}
+		}
+		return cfg;
+	}
+
+	/**
+	 * replaces shared configuration. configuration must not be modified after
+	 * it is set. if its template loader is not {@link PartTemplateLoader},
+	 * parts are parsed on every process.
+	 */
+	public static void setDefaultConfiguration(Configuration cfg) {
+		defaultConfiguration = cfg;
+	}
+
+	public static Configuration createConfiguration() {
 		Configuration cfg = new Configuration();
 		cfg.setObjectWrapper(new DefaultObjectWrapper());
+		cfg.setTemplateLoader(new PartTemplateLoader());
+		cfg.setLocalizedLookup(false);
+		cfg.setDefaultEncoding("UTF-8");
+		// template name contains content hash, so cached one is never stale
+		cfg.setTemplateUpdateDelay(Integer.MAX_VALUE);
+		return cfg;
+	}
+
+	/**
+	 * returns parsed template of the part. it is taken from template cache if
+	 * the configuration uses {@link PartTemplateLoader}.
+	 */
+	public static Template getTemplate(Configuration cfg, OOXMLPackage docx, String part) throws IOException {
+		InputStream is = docx.getInputStream(part);
+		try {
+			byte[] content = IOUtils.toByteArray(is);
+			TemplateLoader loader = cfg.getTemplateLoader();
+			if (loader instanceof PartTemplateLoader)
+				return ((PartTemplateLoader) loader).getTemplate(cfg, part, content);
+			return new Template(part, new InputStreamReader(new ByteArrayInputStream(content), "UTF-8"), cfg);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Override
+	public void process(OOXMLPackage docx, Map<String, Object> rootMap) {
+		Configuration cfg = this.cfg != null ? this.cfg : getDefaultConfiguration();
 
 		for (String s : docx.listParts("")) {
 			
 			if (!targets.isEmpty() && !targets.contains(s))
 				continue;
 			
-			InputStreamReader templateReader = null;
-			
-			PrintWriter writer = null;
-			File sf = new File(docx.getDataDir(), s);
-			File outf = new File(sf.getPath() + ".new");
+			OutputStream os = null;
+			Writer writer = null;
 			try {
-				templateReader = new InputStreamReader(new FileInputStream(sf));
-				writer = new PrintWriter(new FileOutputStream(outf));
-				logger.info("process: try freemarker template processing: {}", sf);
-				Template t = new Template(s, templateReader, cfg);
-				t.process(rootMap, writer);
+				logger.info("process: try freemarker template processing: {}", s);
+				Template t = getTemplate(cfg, docx, s);
+
+				if (streaming) {
+					docx.setDeferredPart(s, newPartWriter(t, rootMap));
+					continue;
+				}
+
+				os = docx.getOutputStream(s);
+				writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+				t.process(toDataModel(t, rootMap), writer);
 				logger.trace("process: freemarker template processing completed");
 				safeClose(writer);
-				safeClose(templateReader);
 				writer = null;
-				templateReader = null;
-
-				logger.trace("process: rename {} to {}", outf, sf);
-				boolean deleteResult = sf.delete();
-				if (deleteResult) {
-					logger.trace("process: deleting old file success: {}", sf);
-					outf.renameTo(sf);
-				} else {
-					logger.error("process: deleting old file failed: {}", sf);
-				}
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -86,12 +161,43 @@ public class FreeMarkerRunner implements OOXMLProcessor {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			} finally {
-				safeClose(templateReader);
-				safeClose(writer);
+				// keep original part if processing failed
+				if (os != null && writer != null)
+					PartStore.abort(os);
 			}
 		}
 	}
 
+	/**
+	 * returns writer processing the template into the part. template
+	 * exception is thrown as cause of {@link IOException}.
+	 */
+	public static PartWriter newPartWriter(final Template t, final Object rootMap) {
+		return new PartWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+				try {
+					t.process(toDataModel(t, rootMap), writer);
+				} catch (TemplateException e) {
+					throw new IOException("template processing failed: " + t.getName(), e);
+				}
+				// flush only. entry stream is closed by the package.
+				writer.flush();
+			}
+		};
+	}
+
+	/**
+	 * returns root data model passed to the template. {@link RenderContext} is
+	 * looked up without being copied.
+	 */
+	public static Object toDataModel(Template t, Object rootMap) {
+		if (rootMap instanceof RenderContext)
+			return ((RenderContext) rootMap).toTemplateModel(t.getObjectWrapper());
+		return rootMap;
+	}
+
 	private void safeClose(Closeable o) {
 		try {
 			if (o != null)
@@ -15,27 +15,25 @@
  */
 package org.krakenapps.docxcod;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.Closeable;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import org.krakenapps.docxcod.util.CloseableHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class MagicNodeUnwrapper implements OOXMLProcessor {
 	private Logger logger = LoggerFactory.getLogger(getClass().getName());
 	
-	private static Pattern MAGICNODE_PTRN_DRCTV = Pattern.compile("<KMagicNode><!\\[CDATA\\[[\\s]*(#(.*)|\\/#(.*)|@(.*))\\]\\]><\\/KMagicNode>");
-	private static Pattern MAGICNODE_PTRN_EXPR = Pattern.compile("<KMagicNode><!\\[CDATA\\[(.*)\\]\\]><\\/KMagicNode>");
+	private static final String MAGICNODE_OPEN = "<KMagicNode><![CDATA[";
+	private static final String MAGICNODE_CLOSE = "]]></KMagicNode>";
 
 	private final String targetPath;
 	
@@ -54,65 +52,251 @@ public class MagicNodeUnwrapper implements OOXMLProcessor {
 		 * In this method, all KMagicNode element will be translated into
 		 * Freemarker directive without XML API.
 		 */
-		BufferedInputStream bis = null;
-		BufferedOutputStream bos = null;
-		FileInputStream fis = null;
+		InputStream fis = null;
+		OutputStream fos = null;
+		boolean completed = false;
 
 		try {
-			File docXml = new File(pkg.getDataDir(), targetPath);
-			File newDocXml = new File(docXml + ".new");
+			fis = pkg.getInputStream(targetPath);
+			fos = pkg.getOutputStream(targetPath);
 
-			fis = new FileInputStream(docXml);
-			String xmlString = new Scanner(fis, "UTF-8").useDelimiter("\\A").next();
-			fis.close();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+			unwrap(new InputStreamReader(fis, "UTF-8"), writer);
+			writer.close();
+			completed = true;
 
-			Matcher matcher = MAGICNODE_PTRN_DRCTV.matcher(xmlString);
-			xmlString = matcher.replaceAll("<$1>");
-			matcher = MAGICNODE_PTRN_EXPR.matcher(xmlString);
-			xmlString = matcher.replaceAll("$1");
+			logger.trace("unwrapMagicNode: {} replaced", targetPath);
 
-			InputStream in = new ByteArrayInputStream(xmlString.getBytes("UTF-8"));
-			FileOutputStream fos = new FileOutputStream(newDocXml);
+		} catch (Exception e) {
+			logger.warn("Exception in unwrapMagicNode", e);
+		} finally {
+			CloseableHelper.safeClose(fis);
+			// keep original part if unwrapping failed
+			if (!completed && fos != null)
+				PartStore.abort(fos);
+		}
+	}
+
+	/**
+	 * copies in to out, translating each KMagicNode into Freemarker directive
+	 * or expression. only the contents of one KMagicNode are buffered. streams
+	 * are not closed.
+	 */
+	public static void unwrap(Reader in, Writer out) throws IOException {
+		UnwrappingWriter writer = new UnwrappingWriter(out);
+		char[] buf = new char[8192];
+		int len;
+		while ((len = in.read(buf)) != -1)
+			writer.write(buf, 0, len);
+		writer.finish();
+	}
+
+	/**
+	 * writer translating each KMagicNode written to it into Freemarker
+	 * directive or expression, so that a document can be serialized and
+	 * unwrapped in one pass. only the contents of one KMagicNode are
+	 * buffered.
+	 */
+	public static class UnwrappingWriter extends Writer {
+		private final Writer out;
+		private final Needle open = new Needle(MAGICNODE_OPEN);
+		private final Needle close = new Needle(MAGICNODE_CLOSE);
+		private StringBuilder contents = null;
+		private boolean finished = false;
+
+		public UnwrappingWriter(Writer out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char[] buf, int off, int len) throws IOException {
+			int i = off;
+			int to = off + len;
+			while (i < to) {
+				if (contents == null) {
+					// search in buffer while whole tag fits, and copy chars
+					// before it at once
+					if (open.matched == 0) {
+						int end = find(buf, i, to, open.chars);
+						out.write(buf, i, end - i);
+						i = end;
+						if (i + open.chars.length <= to) {
+							i += open.chars.length;
+							contents = new StringBuilder();
+							continue;
+						}
+						if (i == to)
+							break;
+					}
 
-			bis = new BufferedInputStream(in);
-			bos = new BufferedOutputStream(fos);
+					// tag may continue in next buffer
 
-			int len = 0;
-			byte[] buf = new byte[1024];
-			while ((len = bis.read(buf, 0, 1024)) != -1) {
-				bos.write(buf, 0, len);
+					char c = buf[i++];
+					int before = open.matched;
+					if (open.feed(c)) {
+						contents = new StringBuilder();
+						continue;
+					}
+					// chars no longer part of possible match
+					int released = before + 1 - open.matched;
+					if (released > before) {
+						out.write(open.chars, 0, before);
+						out.write(c);
+					} else if (released > 0) {
+						out.write(open.chars, 0, released);
+					}
+				} else {
+					if (close.matched == 0) {
+						int end = find(buf, i, to, close.chars);
+						contents.append(buf, i, end - i);
+						i = end;
+						if (i + close.chars.length <= to) {
+							i += close.chars.length;
+							writeUnwrapped(contents, out);
+							contents = null;
+							continue;
+						}
+						if (i == to)
+							break;
+					}
+
+					char c = buf[i++];
+					int before = close.matched;
+					if (close.feed(c)) {
+						writeUnwrapped(contents, out);
+						contents = null;
+						continue;
+					}
+					int released = before + 1 - close.matched;
+					if (released > before) {
+						contents.append(close.chars, 0, before);
+						contents.append(c);
+					} else if (released > 0) {
+						contents.append(close.chars, 0, released);
+					}
+				}
 			}
+		}
 
-			bis.close();
-			bos.close();
-			bis = null;
-			bos = null;
+		/**
+		 * writes pending chars and flushes out. unterminated magic node is
+		 * kept as it is. out is not closed.
+		 */
+		public void finish() throws IOException {
+			if (finished)
+				return;
+			finished = true;
 
-			logger.trace("unwrapMagicNode: rename {} to {}", newDocXml, docXml);
-			boolean deleteResult = docXml.delete();
-			if (deleteResult) {
-				logger.trace("unwrapMagicNode: deleting old file success: {}", docXml);
-				newDocXml.renameTo(docXml);
+			if (contents == null) {
+				out.write(open.chars, 0, open.matched);
 			} else {
-				logger.error("unwrapMagicNode: deleting old file failed: {}", docXml);
+				out.write(MAGICNODE_OPEN);
+				out.append(contents);
+				out.write(close.chars, 0, close.matched);
 			}
+			out.flush();
+		}
 
-		} catch (Exception e) {
-			logger.warn("Exception in unwrapMagicNode", e);
-		} finally {
-			safeClose(fis);
-			safeClose(bis);
-			safeClose(bos);
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		/**
+		 * finishes and closes out.
+		 */
+		@Override
+		public void close() throws IOException {
+			finish();
+			out.close();
 		}
 	}
 
-	private void safeClose(Closeable f) {
-		if (f == null)
-			return;
-		try {
-			f.close();
-		} catch (Exception e) {
-			// ignore
+	/**
+	 * returns index of s in buf, or index from which s may continue past the
+	 * end of buf, or to if neither.
+	 */
+	private static int find(char[] buf, int from, int to, char[] s) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] != s[0])
+				continue;
+			if (i + s.length > to)
+				return i;
+
+			int k = 1;
+			while (k < s.length && buf[i + k] == s[k])
+				k++;
+			if (k == s.length)
+				return i;
+		}
+		return to;
+	}
+
+	private static void writeUnwrapped(CharSequence contents, Writer out) throws IOException {
+		int begin = 0;
+		while (begin < contents.length() && isSpace(contents.charAt(begin)))
+			begin++;
+
+		if (startsWith(contents, begin, "#") || startsWith(contents, begin, "/#") || startsWith(contents, begin, "@")) {
+			out.write('<');
+			out.append(contents, begin, contents.length());
+			out.write('>');
+		} else {
+			out.append(contents);
+		}
+	}
+
+	// same as \s of regular expression
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+	}
+
+	private static boolean startsWith(CharSequence s, int offset, String prefix) {
+		if (s.length() - offset < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++)
+			if (s.charAt(offset + i) != prefix.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * incremental string matcher. fed chars which may still be part of the
+	 * string are kept as matched count; they are the first matched chars of
+	 * the string.
+	 */
+	private static class Needle {
+		private final char[] chars;
+		// longest proper prefix which is also suffix, for each prefix length
+		private final int[] fallback;
+		private int matched = 0;
+
+		private Needle(String s) {
+			chars = s.toCharArray();
+			fallback = new int[chars.length];
+			int k = 0;
+			for (int i = 1; i < chars.length; i++) {
+				while (k > 0 && chars[i] != chars[k])
+					k = fallback[k - 1];
+				if (chars[i] == chars[k])
+					k++;
+				fallback[i] = k;
+			}
+		}
+
+		/**
+		 * returns true when the whole string is matched, and starts over.
+		 */
+		private boolean feed(char c) {
+			while (matched > 0 && chars[matched] != c)
+				matched = fallback[matched - 1];
+			if (chars[matched] == c)
+				matched++;
+			if (matched == chars.length) {
+				matched = 0;
+				return true;
+			}
+			return false;
 		}
 	}
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * keeps every part as a byte buffer keyed by part name. nothing is written to
+ * the file system.
+ */
+public class MemoryPartStore extends PartStore {
+
+	private static class Entry {
+		private final byte[] data;
+		private final long time;
+
+		private Entry(byte[] data, long time) {
+			this.data = data;
+			this.time = time;
+		}
+	}
+
+	// keeps insertion order, which is the entry order of the source zip
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	@Override
+	public synchronized boolean exists(String name) {
+		return entries.containsKey(normalizeName(name));
+	}
+
+	@Override
+	public InputStream openInputStream(String name) throws IOException {
+		return new ByteArrayInputStream(getBytes(name));
+	}
+
+	@Override
+	public OutputStream openOutputStream(final String name) throws IOException {
+		class CommittingOutputStream extends ByteArrayOutputStream implements Abortable {
+			private boolean closed = false;
+
+			CommittingOutputStream() {
+				super(8192);
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				put(name, toByteArray(), System.currentTimeMillis());
+			}
+
+			@Override
+			public void abort() {
+				closed = true;
+			}
+		}
+
+		return new CommittingOutputStream();
+	}
+
+	@Override
+	public synchronized boolean delete(String name) {
+		return entries.remove(normalizeName(name)) != null;
+	}
+
+	@Override
+	public synchronized long lastModified(String name) {
+		Entry e = entries.get(normalizeName(name));
+		return e == null ? 0L : e.time;
+	}
+
+	@Override
+	public synchronized long length(String name) {
+		Entry e = entries.get(normalizeName(name));
+		return e == null ? -1L : e.data.length;
+	}
+
+	@Override
+	public synchronized List<String> listNames() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * returns stored buffer itself. callers must not modify it.
+	 */
+	public synchronized byte[] getBytes(String name) throws FileNotFoundException {
+		Entry e = entries.get(normalizeName(name));
+		if (e == null)
+			throw new FileNotFoundException("part not found: " + name);
+		return e.data;
+	}
+
+	public synchronized void put(String name, byte[] data, long time) {
+		entries.put(normalizeName(name), new Entry(data, time));
+	}
+
+	/**
+	 * returns store having same parts. buffers are shared, which is safe
+	 * because writing a part replaces its buffer.
+	 */
+	public synchronized MemoryPartStore copy() {
+		MemoryPartStore c = new MemoryPartStore();
+		c.entries.putAll(entries);
+		return c;
+	}
+}
@@ -15,14 +15,11 @@
  */
 package org.krakenapps.docxcod;
 
+import static org.krakenapps.docxcod.util.XMLDocHelper.compileXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPathExpr;
-import static org.krakenapps.docxcod.util.XMLDocHelper.newDocumentBuilder;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -34,8 +31,6 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 
-import org.krakenapps.docxcod.util.CloseableHelper;
-import org.krakenapps.docxcod.util.XMLDocHelper;
 import org.krakenapps.docxcod.util.XMLDocHelper.NodeListIterAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,36 +53,44 @@ public class MergeFieldParser implements OOXMLProcessor {
 	}
 
 	private void extractMergeField(OOXMLPackage pkg) throws TransformerFactoryConfigurationError {
-		InputStream f = null;
 		try {
-			f = new FileInputStream(new File(pkg.getDataDir(), "word/document.xml"));
-			Document doc = newDocumentBuilder().parse(f);
+			Document doc = pkg.getDocument("word/document.xml");
 
 			XPath xpath = newXPath(doc);
 			NodeList nodeList = evaluateXPath(xpath,
 					"//*[name()='w:fldChar' or name()='w:instrText' or name()='w:fldSimple']", doc);
 
-			List<Directive> directives = DirectiveExtractor.parseNodeList(nodeList);
-			for (Directive d : directives) {
+			rewriteFields(doc, nodeList);
 
-				Node n = d.getPosition();
+			pkg.markDirty("word/document.xml");
 
-				String directive = d.getDirectiveString();
-				logger.debug("{} {}", new Object[] { n.getNodeName(), directive });
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
-				MakeMagicNode(doc, n, directive);
-			}
+	/**
+	 * replaces fields in nodeList with magic nodes, and returns magic nodes
+	 * put in the document.
+	 */
+	List<Node> rewriteFields(Document doc, NodeList nodeList) {
+		List<Node> magicNodes = new ArrayList<Node>();
+		List<Directive> directives = DirectiveExtractor.parseNodeList(nodeList);
+		for (Directive d : directives) {
 
-			XMLDocHelper.save(doc, new File(pkg.getDataDir(), "word/document.xml"), true);
+			Node n = d.getPosition();
 
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			CloseableHelper.safeClose(f);
+			String directive = d.getDirectiveString();
+			logger.debug("{} {}", new Object[] { n.getNodeName(), directive });
+
+			Node magicNode = MakeMagicNode(doc, n, directive);
+			if (magicNode != null)
+				magicNodes.add(magicNode);
 		}
+		return magicNodes;
 	}
 
-	private void MakeMagicNode(Document doc, Node n, String directive) {
+	private Node MakeMagicNode(Document doc, Node n, String directive) {
 		/*
 		 * move all nodes in fldSimple to out of it. and replace text contents
 		 * of <w:t> with KMagicNode
@@ -119,16 +122,18 @@ public class MergeFieldParser implements OOXMLProcessor {
 
             */ // @formatter:on
 			logger.debug("fldSimple found");
-			XPath xpath = newXPath(doc);
 			XPathExpression xpFldSimpleText;
+			Node magicNode = null;
 			Node parent = n.getParentNode();
 			try {
-				xpFldSimpleText = xpath.compile("w:r/w:t");
+				xpFldSimpleText = compileXPath(doc, "w:r/w:t");
 				NodeList t = evaluateXPathExpr(xpFldSimpleText, n);
 
 				t.item(0).setTextContent("");
 				t.item(0).appendChild(getMagicNode(doc, directive));
-				parent.insertBefore(t.item(0).getParentNode().cloneNode(true), n);
+				Node run = t.item(0).getParentNode().cloneNode(true);
+				parent.insertBefore(run, n);
+				magicNode = findTextNode(run).getFirstChild();
 			} catch (XPathExpressionException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -140,6 +145,7 @@ public class MergeFieldParser implements OOXMLProcessor {
 			// parent.insertBefore(c.cloneNode(true), n);
 			// }
 			parent.removeChild(n);
+			return magicNode;
 		} else if (n.getNodeName().equals("w:fldChar")) {
 			logger.debug("fldChar found");
 			// @formatter:off
@@ -225,37 +231,33 @@ public class MergeFieldParser implements OOXMLProcessor {
 			willBeRemoved.remove(beginRun);
 
 			if (beginRun != null && lastRun != null) { // found matching "end" fldChar
-				do {
-					Node parentNode = firstRun.getParentNode();
-					for (Node node : willBeRemoved) {
-						parentNode.removeChild(node);
-					}
+				Node parentNode = firstRun.getParentNode();
+				for (Node node : willBeRemoved) {
+					parentNode.removeChild(node);
+				}
 
-					// replace contents of first w:r. so formating style of
-					// newRun will preserved.
-					Node textNode = findTextNode(beginRun);
-					if (textNode != null) {
-						textNode.setTextContent("");
-						textNode.appendChild(getMagicNode(doc, directive));
-						break;
-					}
-					Node fldCharNode = findNode(beginRun, "w:fldChar"); 
-					if (fldCharNode != null) {
-						textNode = doc.createElement("w:t");
-						textNode.appendChild(getMagicNode(doc, directive));
-						beginRun.appendChild(textNode);
-						beginRun.removeChild(fldCharNode);
-						break;
-					}
-					
-					logger.warn("not-supported fldChar type node");
+				// replace contents of first w:r. so formating style of
+				// newRun will preserved.
+				Node textNode = findTextNode(beginRun);
+				if (textNode != null) {
+					textNode.setTextContent("");
+					return textNode.appendChild(getMagicNode(doc, directive));
+				}
+				Node fldCharNode = findNode(beginRun, "w:fldChar"); 
+				if (fldCharNode != null) {
+					textNode = doc.createElement("w:t");
+					Node magicNode = textNode.appendChild(getMagicNode(doc, directive));
+					beginRun.appendChild(textNode);
+					beginRun.removeChild(fldCharNode);
+					return magicNode;
+				}
 
-				} while (false);
+				logger.warn("not-supported fldChar type node");
 			} else {
 				logger.warn("no coressponding begin & end fldChar found");
 			}
 		}
-
+		return null;
 	}
 
 	private static Pattern MAGICNODE_PATTERN = Pattern.compile("<KMagicNode><![CDATA[+(.*)+]]></KMagicNode>");
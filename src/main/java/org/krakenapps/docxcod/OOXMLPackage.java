@@ -19,29 +19,33 @@ import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newDocumentBuilder;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileFilter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
@@ -49,11 +53,17 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.krakenapps.docxcod.util.CloseableHelper;
+import org.krakenapps.docxcod.util.RawZipEntry;
+import org.krakenapps.docxcod.util.XMLDocHelper;
 import org.krakenapps.docxcod.util.XMLDocHelper.NodeListIterAdapter;
+import org.krakenapps.docxcod.util.ZipArchiveWriter;
 import org.krakenapps.docxcod.util.ZipHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -61,34 +71,167 @@ import org.xml.sax.SAXException;
 
 public class OOXMLPackage {
 
+	/**
+	 * how xml parts are pretty-printed on load.
+	 */
+	public enum TidyMode {
+		/** tidy every xml part on load */
+		EAGER,
+		/** tidy xml part when it is opened through the package first time */
+		LAZY,
+		/** keep parts as they are */
+		NONE
+	}
+
+	private static final String CONTENT_TYPES_XML = "[Content_Types].xml";
+
 	private Logger logger = LoggerFactory.getLogger(getClass().getName());
 
+	private TidyMode tidyMode = TidyMode.EAGER;
+
+	// xml parts not tidied yet in lazy mode
+	private Set<String> untidyParts = new HashSet<String>();
+	// part name to lock held while the part is tidied, guarded by untidyParts
+	private Map<String, Object> tidyLocks = new HashMap<String, Object>();
+
+
 	private File dataDir = null;
 
+	private PartStore store = null;
+
 	private Relationship rootRel = null;
 
+	// entries of loaded zip. unmodified parts are copied from here on save.
+	// parts are tidied concurrently, so it is guarded by untidyParts.
+	private Map<String, RawZipEntry> sourceEntries = Collections.emptyMap();
+
+	// times of entries of loaded zip, kept after the parts are modified.
+	// modified and new parts are saved with these instead of the time they
+	// are written, so same content is saved as same bytes.
+	private Map<String, Long> sourceTimes = Collections.emptyMap();
+	private Long newestSourceTime = null;
+
+	// part name to writer producing its content on save
+	private Map<String, PartWriter> deferredParts = new LinkedHashMap<String, PartWriter>();
+
+	private static class CachedDocument {
+		private final Document doc;
+		private boolean modified = false;
+
+		private CachedDocument(Document doc) {
+			this.doc = doc;
+		}
+	}
+
+	// part name to document shared by processors
+	private Map<String, CachedDocument> documents = new HashMap<String, CachedDocument>();
+
+	// relationship part name to id index of its cached document
+	private Map<String, RelationshipIndex> relIndexes = new HashMap<String, RelationshipIndex>();
+
+	private static class RelationshipIndex {
+		private final Document doc;
+		private final Map<String, Element> byId = new HashMap<String, Element>();
+
+		private RelationshipIndex(Document doc) {
+			this.doc = doc;
+			for (Node n = doc.getFirstChild().getFirstChild(); n != null; n = n.getNextSibling()) {
+				if (n instanceof Element)
+					byId.put(((Element) n).getAttribute("Id"), (Element) n);
+			}
+		}
+	}
+
+	// parts written through package api since load
+	private Set<String> dirtyParts = Collections.synchronizedSet(new LinkedHashSet<String>());
+
 	public OOXMLPackage() {
 
 	}
 
+	/**
+	 * returns the directory parts are extracted to. in-memory packages have
+	 * no data directory and return null; use {@link #getInputStream(String)}
+	 * and {@link #getOutputStream(String)} instead.
+	 */
 	public File getDataDir() {
 		return dataDir;
 	}
 
+	public PartStore getPartStore() {
+		return store;
+	}
+
+	public boolean isInMemory() {
+		return store instanceof MemoryPartStore;
+	}
+
+	public TidyMode getTidyMode() {
+		return tidyMode;
+	}
+
+	/**
+	 * sets tidy mode used by following load. default is
+	 * {@link TidyMode#EAGER}.
+	 */
+	public void setTidyMode(TidyMode tidyMode) {
+		this.tidyMode = tidyMode;
+	}
+
 	public void attach(File targetDir) {
-		if (this.dataDir != null)
+		if (this.store != null)
 			throw new AlreadyAttachedException(targetDir.getAbsolutePath());
+		this.store = new DirectoryPartStore(targetDir);
 		this.dataDir = targetDir;
 		parseRels();
 	}
 
 	public void load(InputStream is, File targetDir) throws IOException {
-		if (this.dataDir != null)
+		if (this.store != null)
 			throw new AlreadyAttachedException(targetDir.getAbsolutePath());
+		if (!targetDir.exists()) {
+			CloseableHelper.safeClose(is);
+			throw new FileNotFoundException("target directory does not exist. :" + targetDir);
+		}
+		this.store = new DirectoryPartStore(targetDir);
 		this.dataDir = targetDir;
+		load(is, store);
+	}
+
+	/**
+	 * loads package into byte buffers keyed by part name. load, apply and save
+	 * never touch the file system.
+	 */
+	public void loadInMemory(InputStream is) throws IOException {
+		if (this.store != null)
+			throw new AlreadyAttachedException("memory");
+		this.store = new MemoryPartStore();
+		load(is, store);
+	}
+
+	public void load(InputStream is) throws IOException {
+		try {
+			File tempDir = File.createTempFile("KrakenDocxcodData_", "");
+			tempDir.delete();
+			tempDir.mkdirs();
+			load(is, tempDir);
+		} catch (IOException e) {
+			throw e;
+		}
+	}
+
+	private void load(InputStream is, PartStore store) throws IOException {
 		try {
-			ZipHelper.extract(is, dataDir);
-			tidyXMLs();
+			byte[] zip = IOUtils.toByteArray(is);
+			synchronized (untidyParts) {
+				sourceEntries = new HashMap<String, RawZipEntry>(ZipHelper.readRawEntries(zip));
+				readSourceTimes();
+			}
+			ZipHelper.extract(new ByteArrayInputStream(zip), store);
+			if (tidyMode == TidyMode.EAGER)
+				tidyXMLs();
+			else if (tidyMode == TidyMode.LAZY)
+				untidyParts.addAll(filterXMLParts(store.listNames()));
 			parseRels();
 		} catch (IOException e) {
 			throw e;
@@ -103,22 +246,229 @@ public class OOXMLPackage {
 		}
 	}
 
+	/**
+	 * returns in-memory package having same parts, relationships and dirty
+	 * parts. part buffers are shared, so copying is cheap.
+	 */
+	public OOXMLPackage copy() throws IOException {
+		if (!isInMemory())
+			throw new IllegalStateException("only in-memory package can be copied");
+
+		flushDocuments();
+
+		OOXMLPackage c = new OOXMLPackage();
+		c.tidyMode = tidyMode;
+		c.store = ((MemoryPartStore) store).copy();
+		c.rootRel = rootRel;
+		c.dirtyParts.addAll(getDirtyParts());
+		synchronized (untidyParts) {
+			c.untidyParts.addAll(untidyParts);
+			c.sourceEntries = new HashMap<String, RawZipEntry>(sourceEntries);
+		}
+		// never modified after load
+		c.sourceTimes = sourceTimes;
+		c.newestSourceTime = newestSourceTime;
+		return c;
+	}
+
+	private void readSourceTimes() {
+		Map<String, Long> times = new HashMap<String, Long>();
+		Long newest = null;
+		for (RawZipEntry e : sourceEntries.values()) {
+			long time = e.getTime();
+			times.put(e.getName(), time);
+			if (newest == null || newest < time)
+				newest = time;
+		}
+		sourceTimes = Collections.unmodifiableMap(times);
+		newestSourceTime = newest;
+	}
+
+	/**
+	 * returns time of the entry written for the part: time of the source
+	 * entry, or the newest one for new part. null if nothing is loaded.
+	 */
+	private Long getEntryTime(String part) {
+		Long time = sourceTimes.get(PartStore.normalizeName(part));
+		return time != null ? time : newestSourceTime;
+	}
+
+	public boolean hasPart(String part) {
+		return store.exists(part);
+	}
+
+	/**
+	 * returns content of the part. if the part has modified document from
+	 * {@link #getDocument(String)}, it is serialized first.
+	 */
+	public InputStream getInputStream(String part) throws IOException {
+		flushDocument(part);
+		tidyIfNeeded(part);
+		return store.openInputStream(part);
+	}
+
+	/**
+	 * returns stream replacing the content of given part when closed. the
+	 * part is marked dirty, and its cached document is discarded.
+	 */
+	public OutputStream getOutputStream(String part) throws IOException {
+		markDirty(part);
+		discardDocument(part);
+		synchronized (untidyParts) {
+			untidyParts.remove(PartStore.normalizeName(part));
+		}
+		return store.openOutputStream(part);
+	}
+
+	/**
+	 * returns parsed document of the part, shared by processors. processors
+	 * modifying it must call {@link #markDirty(String)} instead of writing the
+	 * part; it is serialized once when the part is read as bytes or the
+	 * package is saved.
+	 */
+	public Document getDocument(String part) throws IOException {
+		String name = PartStore.normalizeName(part);
+		synchronized (documents) {
+			CachedDocument c = documents.get(name);
+			if (c != null)
+				return c.doc;
+		}
+
+		InputStream is = getInputStream(name);
+		Document doc = null;
+		try {
+			doc = newDocumentBuilder().parse(is);
+		} catch (SAXException e) {
+			throw new IOException("cannot parse part: " + name, e);
+		} catch (ParserConfigurationException e) {
+			throw new IOException("cannot parse part: " + name, e);
+		} finally {
+			CloseableHelper.safeClose(is);
+		}
+
+		synchronized (documents) {
+			CachedDocument c = documents.get(name);
+			if (c != null)
+				return c.doc;
+			documents.put(name, new CachedDocument(doc));
+		}
+		return doc;
+	}
+
+	private void flushDocument(String part) throws IOException {
+		String name = PartStore.normalizeName(part);
+		CachedDocument c = null;
+		synchronized (documents) {
+			c = documents.get(name);
+			if (c == null || !c.modified)
+				return;
+			// serializing strips whitespace nodes, so the document is not kept
+			documents.remove(name);
+		}
+
+		logger.trace("serializing cached document: {}", name);
+		OutputStream os = store.openOutputStream(name);
+		boolean completed = false;
+		try {
+			XMLDocHelper.save(c.doc, os, true);
+			os.close();
+			completed = true;
+		} catch (TransformerException e) {
+			throw new IOException("cannot serialize part: " + name, e);
+		} catch (XPathExpressionException e) {
+			throw new IOException("cannot serialize part: " + name, e);
+		} finally {
+			if (!completed)
+				PartStore.abort(os);
+		}
+	}
+
+	/**
+	 * serializes every modified document from {@link #getDocument(String)}.
+	 */
+	public void flushDocuments() throws IOException {
+		List<String> names;
+		synchronized (documents) {
+			names = new ArrayList<String>(documents.keySet());
+		}
+		for (String name : names)
+			flushDocument(name);
+	}
+
+	private void discardDocument(String part) {
+		synchronized (documents) {
+			documents.remove(PartStore.normalizeName(part));
+		}
+	}
+
+	/**
+	 * sets writer producing content of the part while the package is saved.
+	 * the content is streamed into the zip entry and never stored in the
+	 * package, so reading the part afterwards returns its previous content.
+	 * writer is called once, by the next save.
+	 */
+	public void setDeferredPart(String part, PartWriter writer) {
+		String name = PartStore.normalizeName(part);
+		markDirty(name);
+		discardDocument(name);
+		synchronized (deferredParts) {
+			deferredParts.put(name, writer);
+		}
+	}
+
+	/**
+	 * marks the part dirty. if the part has cached document, it will be
+	 * serialized.
+	 */
+	public void markDirty(String part) {
+		String name = PartStore.normalizeName(part);
+		dirtyParts.add(name);
+		synchronized (documents) {
+			CachedDocument c = documents.get(name);
+			if (c != null)
+				c.modified = true;
+		}
+	}
+
+	public boolean isDirty(String part) {
+		return dirtyParts.contains(PartStore.normalizeName(part));
+	}
+
+	/**
+	 * returns names of parts written since load. tidying on load does not
+	 * make a part dirty.
+	 */
+	public Set<String> getDirtyParts() {
+		synchronized (dirtyParts) {
+			return new LinkedHashSet<String>(dirtyParts);
+		}
+	}
+
+	private boolean isRelsDirty() {
+		synchronized (dirtyParts) {
+			for (String part : dirtyParts) {
+				if (part.endsWith(".rels"))
+					return true;
+			}
+		}
+		return false;
+	}
+
 	private void parseRels() {
-		File rootRelDir = new File(dataDir, "_rels");
-		File rootRelFile = new File(rootRelDir, ".rels");
-		Stack<SimpleEntry<File, Relationship>> remaining = new Stack<SimpleEntry<File, Relationship>>();
+		String rootRelPart = "_rels/.rels";
+		Stack<SimpleEntry<String, Relationship>> remaining = new Stack<SimpleEntry<String, Relationship>>();
 		Set<Relationship> relationships = new HashSet<Relationship>();
 
 		rootRel = new Relationship();
-		remaining.push(new SimpleEntry<File, Relationship>(rootRelFile, rootRel));
+		remaining.push(new SimpleEntry<String, Relationship>(rootRelPart, rootRel));
 		try {
 			while (!remaining.empty()) {
-				SimpleEntry<File, Relationship> cur = remaining.pop();
-				File curFile = cur.getKey();
-				if (!curFile.exists())
+				SimpleEntry<String, Relationship> cur = remaining.pop();
+				String curPart = cur.getKey();
+				if (curPart == null || !store.exists(curPart))
 					continue;
-				Document doc = newDocumentBuilder().parse(curFile);
-				logger.trace("Parsing: " + curFile);
+				Document doc = parseRelsPart(curPart);
+				logger.trace("Parsing: " + curPart);
 				Relationship parent = cur.getValue();
 
 				try {
@@ -130,13 +480,13 @@ public class OOXMLPackage {
 						parent.children.add(rel);
 						relationships.add(rel);
 						remaining.push(
-								new SimpleEntry<File, Relationship>(
-										makeRelFile(curFile, rel.target),
+								new SimpleEntry<String, Relationship>(
+										makeRelPart(curPart, rel.target),
 										rel));
 					}
 
 				} catch (XPathExpressionException e) {
-					logger.warn("invalid rels document: " + curFile);
+					logger.warn("invalid rels document: " + curPart);
 				} finally {
 				}
 			}
@@ -155,6 +505,15 @@ public class OOXMLPackage {
 
 	}
 
+	private Document parseRelsPart(String part) throws SAXException, IOException, ParserConfigurationException {
+		InputStream is = store.openInputStream(part);
+		try {
+			return newDocumentBuilder().parse(is);
+		} finally {
+			CloseableHelper.safeClose(is);
+		}
+	}
+
 	private void printRelationship(Relationship rootRel, PrintWriter writer) {
 		Stack<SimpleEntry<Integer, Relationship>> r = new Stack<SimpleEntry<Integer, Relationship>>();
 		r.push(new SimpleEntry<Integer, Relationship>(0, rootRel));
@@ -175,47 +534,74 @@ public class OOXMLPackage {
 		writer.flush();
 	}
 
-	private File makeRelFile(File curFile, String path) {
-		File parent = curFile.getParentFile().getParentFile();
-		File target = new File(parent, path);
-		File relsParent = target.getParentFile();
-		File rels = new File(relsParent, "_rels");
+	private String makeRelPart(String curPart, String path) {
+		// ex: word/_rels/document.xml.rels + charts/chart1.xml
+		// -> word/charts/_rels/chart1.xml.rels
+		String parent = FilenameUtils.getPathNoEndSeparator(FilenameUtils.getPathNoEndSeparator(curPart));
+		String target = path.startsWith("/") ? path : FilenameUtils.concat(parent, path);
+		if (target == null)
+			return null;
+		target = PartStore.normalizeName(target);
 
-		return new File(rels, target.getName() + ".rels");
+		return FilenameUtils.getPath(target) + "_rels/" + FilenameUtils.getName(target) + ".rels";
 	}
 
-	public void load(InputStream is) throws IOException {
-		try {
-			File tempDir = File.createTempFile("KrakenDocxcodData_", "");
-			tempDir.delete();
-			tempDir.mkdirs();
-			load(is, tempDir);
-		} catch (IOException e) {
-			throw e;
+	private void tidyIfNeeded(String part) {
+		if (tidyMode != TidyMode.LAZY)
+			return;
+		String name = PartStore.normalizeName(part);
+		Object lock;
+		synchronized (untidyParts) {
+			if (!untidyParts.contains(name))
+				return;
+			lock = tidyLocks.get(name);
+			if (lock == null) {
+				lock = new Object();
+				tidyLocks.put(name, lock);
+			}
+		}
+
+		// different parts are tidied concurrently. readers of the part wait
+		// until it is tidied.
+		synchronized (lock) {
+			synchronized (untidyParts) {
+				if (!untidyParts.contains(name))
+					return;
+			}
+			tidyXML(part);
+			synchronized (untidyParts) {
+				untidyParts.remove(name);
+			}
 		}
 	}
 
 	private void tidyXMLs() {
-		ArrayList<File> files = new ArrayList<File>();
-		ZipHelper.getFilesRecursivelyIn(dataDir, files);
-
-		files = filterXMLfiles(files);
-
-		for (File f : files) {
-			tidyXML(f);
+		for (String part : filterXMLParts(store.listNames())) {
+			tidyXML(part);
 		}
 	}
 
-	private void tidyXML(File f) {
+	private void tidyXML(String part) {
 		Document doc;
+		InputStream is = null;
+		OutputStream os = null;
 		try {
-			doc = newDocumentBuilder().parse(f);
+			is = store.openInputStream(part);
+			doc = newDocumentBuilder().parse(is);
 			if (doc == null)
 				return;
-			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			is.close();
+			Transformer transformer = XMLDocHelper.getTransformer();
 			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
 			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-			transformer.transform(new DOMSource(doc), new StreamResult(f));
+			os = store.openOutputStream(part);
+			transformer.transform(new DOMSource(doc), new StreamResult(os));
+			os.close();
+			os = null;
+			// content differs from the source entry now
+			synchronized (untidyParts) {
+				sourceEntries.remove(PartStore.normalizeName(part));
+			}
 		} catch (SAXException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -228,74 +614,197 @@ public class OOXMLPackage {
 			e.printStackTrace();
 		} catch (TransformerException e) {
 			e.printStackTrace();
+		} finally {
+			CloseableHelper.safeClose(is);
+			if (os != null)
+				PartStore.abort(os);
 		}
 	}
 
-	private ArrayList<File> filterXMLfiles(ArrayList<File> files) {
-		ArrayList<File> result = new ArrayList<File>();
-		for (File f : files) {
-			String n = f.getName();
-			n = n.toUpperCase();
+	private List<String> filterXMLParts(List<String> parts) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (String p : parts) {
+			String n = p.toUpperCase();
 			if (n.endsWith(".XML") || n.endsWith(".RELS"))
-				result.add(f);
+				result.add(p);
 		}
 
 		return result;
 	}
 
 	public void save(OutputStream os) {
-		ZipOutputStream zipOs = null;
 		try {
-			parseRels();
-			
-			zipOs = new ZipOutputStream(os);
-			List<File> files = new ArrayList<File>();
+			writeTo(os);
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * same as {@link #save(OutputStream)}, but throws exception raised while
+	 * writing the zip, including ones from deferred part writers. on failure,
+	 * central directory is not written, so incomplete archive is not readable.
+	 *
+	 * [Content_Types].xml is the first entry unless there are deferred parts.
+	 * deferred parts are streamed first and [Content_Types].xml follows them,
+	 * because their writers can add content types. OPC does not require an
+	 * order of entries.
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		ZipArchiveWriter zip = null;
+		boolean completed = false;
+		try {
+			flushDocuments();
+			zip = new ZipArchiveWriter(os);
 
-			files.add(new File(dataDir, "[Content_Types].xml"));
+			// deferred writers can add parts and relationships (ex: chart
+			// helper functions), so they run before parts are listed.
+			Set<String> streamed = writeDeferredParts(zip);
+			flushDocuments();
 
-			String[] listParts = listParts("");
+			// parts of directory package can be modified through data directory,
+			// so dirty bits are trusted only for in-memory package.
+			boolean trustDirty = isInMemory();
+			if (!trustDirty || rootRel == null || isRelsDirty())
+				parseRels();
 
-			final Set<String> setOfParts = new HashSet<String>(Arrays.asList(listParts));
+			Set<String> names = new LinkedHashSet<String>();
 
-			for (String part : listParts) {
-				files.add(new File(dataDir, part));
+			names.add("[Content_Types].xml");
+
+			Set<String> setOfParts = new HashSet<String>();
+			for (String part : listParts("")) {
+				String name = PartStore.normalizeName(part);
+				setOfParts.add(name);
+				names.add(name);
 			}
 
-			ZipHelper.getFilesRecursivelyIn(dataDir, files, new FileFilter() {
-				@Override
-				public boolean accept(File pathname) {
-					if (pathname.getName().equals(".rels") || isRelsForParts(pathname))
-						return true;
-					else
-						return false;
-				}
+			for (String name : store.listNames()) {
+				if (name.equals("_rels/.rels") || isRelsForParts(name, setOfParts))
+					names.add(name);
+			}
 
-				private boolean isRelsForParts(File pathname) {
-					String path = pathname.getPath();
-					if (path.endsWith(".rels")) {
-						String relParent = path.substring(0, path.length() - ".rels".length());
-						relParent = relParent.replace("_rels" + File.separator, "");
-						return setOfParts.contains(ZipHelper.extractSubPath(new File(relParent), dataDir));
-					}
-					return false;
-				}
-			});
+			names.removeAll(streamed);
 
-			ZipHelper.archive(zipOs, files, dataDir);
-			zipOs.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Map<String, RawZipEntry> cleanEntries;
+			synchronized (untidyParts) {
+				cleanEntries = new HashMap<String, RawZipEntry>(sourceEntries);
+			}
+			cleanEntries.keySet().removeAll(getDirtyParts());
+
+			Map<String, Long> entryTimes = new HashMap<String, Long>();
+			for (String name : names) {
+				Long time = getEntryTime(name);
+				if (time != null)
+					entryTimes.put(name, time);
+			}
+
+			logger.debug("saving {} parts, {} dirty", names.size() + streamed.size(), dirtyParts.size());
+			ZipHelper.archive(zip, names, store, cleanEntries, !trustDirty, entryTimes);
+			zip.close();
+			completed = true;
 		} finally {
-			if (zipOs != null) {
-				try {
-					zipOs.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-					// ignore
-				}
+			if (zip != null && !completed)
+				zip.abort();
+		}
+	}
+
+	private Set<String> writeDeferredParts(ZipArchiveWriter zip) throws IOException {
+		Set<String> streamed = new LinkedHashSet<String>();
+		while (true) {
+			String part;
+			PartWriter writer;
+			synchronized (deferredParts) {
+				if (deferredParts.isEmpty())
+					break;
+				part = deferredParts.keySet().iterator().next();
+				writer = deferredParts.remove(part);
 			}
+
+			logger.trace("writing deferred part: {}", part);
+			Long time = getEntryTime(part);
+			OutputStream os = zip.putNextEntry(part, time != null ? time : System.currentTimeMillis());
+			writer.write(os);
+			zip.closeEntry();
+			streamed.add(part);
 		}
+		return streamed;
+	}
+
+	private boolean isRelsForParts(String name, Set<String> setOfParts) {
+		if (name.endsWith(".rels")) {
+			String relParent = name.substring(0, name.length() - ".rels".length());
+			relParent = relParent.replace("_rels/", "");
+			return setOfParts.contains(relParent);
+		}
+		return false;
+	}
+
+	/**
+	 * returns relationship of given id in the relationship part (ex:
+	 * word/_rels/document.xml.rels), or null if there is none. parent and
+	 * children of returned relationship are not set.
+	 */
+	public synchronized Relationship getRelationship(String relsPart, String id) throws IOException {
+		Element e = getRelationshipIndex(relsPart).byId.get(id);
+		if (e == null)
+			return null;
+
+		Relationship rel = new Relationship();
+		rel.id = id;
+		rel.target = e.hasAttribute("Target") ? e.getAttribute("Target") : null;
+		rel.type = e.hasAttribute("Type") ? e.getAttribute("Type") : null;
+		return rel;
+	}
+
+	/**
+	 * appends relationship to the relationship part. the part is kept parsed
+	 * and serialized once, when it is read as bytes or the package is saved.
+	 */
+	public synchronized void addRelationship(String relsPart, String id, String type, String target)
+			throws IOException {
+		RelationshipIndex index = getRelationshipIndex(relsPart);
+		Element e = index.doc.createElement("Relationship");
+		e.setAttribute("Id", id);
+		e.setAttribute("Target", target);
+		e.setAttribute("Type", type);
+		index.doc.getFirstChild().appendChild(e);
+		index.byId.put(id, e);
+		markDirty(relsPart);
+	}
+
+	/**
+	 * adds default content type of the extension to [Content_Types].xml,
+	 * unless the extension already has one. returns true if it is added.
+	 */
+	public synchronized boolean addDefaultContentType(String extension, String contentType) throws IOException {
+		Document doc = getDocument(CONTENT_TYPES_XML);
+		Node types = doc.getFirstChild();
+		for (Node n = types.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n instanceof Element && "Default".equals(n.getLocalName() != null ? n.getLocalName() : n.getNodeName())
+					&& extension.equals(((Element) n).getAttribute("Extension")))
+				return false;
+		}
+
+		Element e = doc.createElement("Default");
+		e.setAttribute("ContentType", contentType);
+		e.setAttribute("Extension", extension);
+		types.appendChild(e);
+		markDirty(CONTENT_TYPES_XML);
+		return true;
+	}
+
+	private RelationshipIndex getRelationshipIndex(String relsPart) throws IOException {
+		String name = PartStore.normalizeName(relsPart);
+		Document doc = getDocument(name);
+		RelationshipIndex index = relIndexes.get(name);
+		// document is reparsed after it is serialized or replaced
+		if (index == null || index.doc != doc) {
+			index = new RelationshipIndex(doc);
+			relIndexes.put(name, index);
+		}
+		return index;
 	}
 
 	public String addPart(String string, String string2) {
@@ -316,6 +825,36 @@ public class OOXMLPackage {
 		return rootRel;
 	}
 
+	/**
+	 * returns parts targeted by relationships of given types, following
+	 * relationships from the package root breadth first. missing parts are
+	 * excluded.
+	 */
+	public List<String> findParts(Collection<String> relationshipTypes) {
+		List<String> result = new ArrayList<String>();
+		if (rootRel == null)
+			return result;
+
+		LinkedList<SimpleEntry<String, Relationship>> q = new LinkedList<SimpleEntry<String, Relationship>>();
+		Set<Relationship> visited = new HashSet<Relationship>();
+		q.add(new SimpleEntry<String, Relationship>("", rootRel));
+		while (!q.isEmpty()) {
+			SimpleEntry<String, Relationship> e = q.removeFirst();
+			for (Relationship r : e.getValue().children) {
+				if (!visited.add(r))
+					continue;
+				String path = FilenameUtils.concat(e.getKey(), r.target);
+				if (path == null)
+					continue;
+				path = PartStore.normalizeName(path);
+				if (relationshipTypes.contains(r.type) && store.exists(path) && !result.contains(path))
+					result.add(path);
+				q.add(new SimpleEntry<String, Relationship>(FilenameUtils.getFullPath(path), r));
+			}
+		}
+		return result;
+	}
+
 	public String[] listParts(String prefix) {
 		if (rootRel == null)
 			return new String[0];
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * destination of documents rendered by {@link BatchRenderer}. data written to
+ * the stream returned by {@link #openOutputStream(String)} is stored when the
+ * stream is closed, and discarded if the stream is aborted with
+ * {@link PartStore#abort(OutputStream)}. streams may be opened and written
+ * concurrently.
+ */
+public abstract class OutputSink implements Closeable {
+
+	public abstract OutputStream openOutputStream(String name) throws IOException;
+
+	/**
+	 * finishes the sink. no stream can be opened after close.
+	 */
+	@Override
+	public abstract void close() throws IOException;
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+import org.krakenapps.docxcod.util.CloseableHelper;
+
+/**
+ * Storage backend of an {@link OOXMLPackage}. Parts are addressed by their
+ * zip entry name (ex: word/document.xml). Data written to the stream returned
+ * by {@link #openOutputStream(String)} replaces the part when the stream is
+ * closed, so a part can be read and rewritten by the same processor.
+ */
+public abstract class PartStore {
+
+	public abstract boolean exists(String name);
+
+	public abstract InputStream openInputStream(String name) throws IOException;
+
+	public abstract OutputStream openOutputStream(String name) throws IOException;
+
+	public abstract boolean delete(String name);
+
+	public abstract long lastModified(String name);
+
+	/**
+	 * returns size of the part in bytes, or -1 if the part does not exist.
+	 */
+	public abstract long length(String name);
+
+	/**
+	 * returns names of all stored parts including relationship parts.
+	 */
+	public abstract List<String> listNames();
+
+	/**
+	 * implemented by streams returned from {@link #openOutputStream(String)}.
+	 * aborted stream is closed without replacing the part.
+	 */
+	public interface Abortable {
+		void abort();
+	}
+
+	public static void abort(OutputStream os) {
+		if (os instanceof Abortable)
+			((Abortable) os).abort();
+		else
+			CloseableHelper.safeClose(os);
+	}
+
+	/**
+	 * translates file system style path (ex: word\charts\chart1.xml) to zip
+	 * entry name (ex: word/charts/chart1.xml)
+	 */
+	public static String normalizeName(String name) {
+		String n = FilenameUtils.separatorsToUnix(name);
+		while (n.startsWith("/"))
+			n = n.substring(1);
+		return n;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.hash.Hashing;
+
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * loads package parts as templates. template name is made of content hash and
+ * part name, so a part is parsed once per distinct content and the parsed
+ * template is kept in the template cache of the configuration.
+ *
+ * content is handed over through the calling thread, because FreeMarker
+ * loads templates in the thread calling {@link Configuration#getTemplate}.
+ */
+public class PartTemplateLoader implements TemplateLoader {
+
+	private static class Source {
+		private final String name;
+		private final byte[] data;
+
+		private Source(String name, byte[] data) {
+			this.name = name;
+			this.data = data;
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Source && ((Source) obj).name.equals(name);
+		}
+	}
+
+	private final ThreadLocal<Map<String, byte[]>> pending = new ThreadLocal<Map<String, byte[]>>() {
+		@Override
+		protected Map<String, byte[]> initialValue() {
+			return new HashMap<String, byte[]>();
+		}
+	};
+
+	public Template getTemplate(Configuration cfg, String part, byte[] content) throws IOException {
+		String name = Hashing.sha1().hashBytes(content).toString() + "/" + PartStore.normalizeName(part);
+		Map<String, byte[]> m = pending.get();
+		m.put(name, content);
+		try {
+			return cfg.getTemplate(name, "UTF-8");
+		} finally {
+			m.remove(name);
+		}
+	}
+
+	@Override
+	public Object findTemplateSource(String name) throws IOException {
+		byte[] data = pending.get().get(name);
+		return data == null ? null : new Source(name, data);
+	}
+
+	@Override
+	public long getLastModified(Object templateSource) {
+		// content never changes for a name
+		return 0;
+	}
+
+	@Override
+	public Reader getReader(Object templateSource, String encoding) throws IOException {
+		return new InputStreamReader(new ByteArrayInputStream(((Source) templateSource).data), encoding);
+	}
+
+	@Override
+	public void closeTemplateSource(Object templateSource) throws IOException {
+	}
+}
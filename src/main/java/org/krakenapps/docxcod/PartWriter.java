@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * produces content of a part while the package is saved.
+ *
+ * @see OOXMLPackage#setDeferredPart(String, PartWriter)
+ */
+public interface PartWriter {
+	/**
+	 * writes content of the part. os is the zip entry stream and must not be
+	 * closed.
+	 */
+	void write(OutputStream os) throws IOException;
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.SimpleCollection;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * data model of one render, layered over a shared model. values put by
+ * processors and helper functions are kept in the overlay of the context, so
+ * the shared model is never modified and can drive concurrent renders
+ * without being copied.
+ *
+ * an overlay entry hides the shared entry of the same key. shared entries
+ * cannot be removed.
+ */
+public class RenderContext extends AbstractMap<String, Object> {
+	private final Map<String, Object> shared;
+	private final Map<String, Object> overlay = new HashMap<String, Object>();
+
+	public RenderContext(Map<String, Object> shared) {
+		this.shared = shared != null ? shared : Collections.<String, Object> emptyMap();
+	}
+
+	public Map<String, Object> getShared() {
+		return shared;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (overlay.containsKey(key))
+			return overlay.get(key);
+		return shared.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return overlay.containsKey(key) || shared.containsKey(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		Object old = get(key);
+		overlay.put(key, value);
+		return old;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (shared.containsKey(key))
+			throw new UnsupportedOperationException("cannot remove shared entry: " + key);
+		return overlay.remove(key);
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("cannot remove shared entries");
+	}
+
+	@Override
+	public int size() {
+		int size = shared.size();
+		for (String key : overlay.keySet())
+			if (!shared.containsKey(key))
+				size++;
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return overlay.isEmpty() && shared.isEmpty();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		Set<String> keys = new HashSet<String>(shared.keySet());
+		keys.addAll(overlay.keySet());
+		return Collections.unmodifiableSet(keys);
+	}
+
+	/**
+	 * returns snapshot of merged entries. it is a copy, so lookups should use
+	 * {@link #get(Object)}.
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		Map<String, Object> merged = new HashMap<String, Object>(shared);
+		merged.putAll(overlay);
+		return Collections.unmodifiableMap(merged).entrySet();
+	}
+
+	/**
+	 * returns root data model for FreeMarker. unlike wrapping the map, the
+	 * top level is not copied; values are wrapped when they are looked up.
+	 * returned model caches wrapped values and is not thread safe, so use
+	 * one for each template processing.
+	 */
+	public TemplateHashModelEx toTemplateModel(ObjectWrapper wrapper) {
+		return new Model(wrapper != null ? wrapper : ObjectWrapper.DEFAULT_WRAPPER);
+	}
+
+	private class Model implements TemplateHashModelEx {
+		private final ObjectWrapper wrapper;
+		private final Map<String, TemplateModel> wrapped = new HashMap<String, TemplateModel>();
+
+		private Model(ObjectWrapper wrapper) {
+			this.wrapper = wrapper;
+		}
+
+		@Override
+		public TemplateModel get(String key) throws TemplateModelException {
+			TemplateModel m = wrapped.get(key);
+			if (m != null)
+				return m;
+
+			Object value = RenderContext.this.get(key);
+			if (value == null)
+				return null;
+
+			m = value instanceof TemplateModel ? (TemplateModel) value : wrapper.wrap(value);
+			wrapped.put(key, m);
+			return m;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return RenderContext.this.isEmpty();
+		}
+
+		@Override
+		public int size() {
+			return RenderContext.this.size();
+		}
+
+		@Override
+		public TemplateCollectionModel keys() {
+			return new SimpleCollection(keySet(), wrapper);
+		}
+
+		@Override
+		public TemplateCollectionModel values() throws TemplateModelException {
+			return new SimpleCollection(RenderContext.this.values(), wrapper);
+		}
+	}
+}
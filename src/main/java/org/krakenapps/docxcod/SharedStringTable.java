@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.krakenapps.docxcod.util.CloseableHelper;
+import org.krakenapps.docxcod.util.XMLDocHelper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * shared strings of a workbook being written. strings are deduplicated by a
+ * hash table, so a label repeated in many rows is stored once and cells refer
+ * to it by index. strings of the original workbook keep their indexes, so
+ * cells copied from it stay valid.
+ */
+public class SharedStringTable {
+	private static final String SST_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+	private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n";
+
+	/**
+	 * sharedStrings.xml of the original workbook. its markup is kept as read,
+	 * so rich text runs and phonetic properties of original strings survive
+	 * and only strings added by a render are generated. it is immutable and
+	 * shared by renders of the workbook.
+	 */
+	public static class Original {
+		private static final String COUNT_MARK = "docxcod-unique-count";
+		private static final String INSERT_MARK = "docxcod-new-strings";
+
+		private final List<String> strings;
+		// markup before and after uniqueCount value of sst element
+		private final String head;
+		private final String middle;
+		// markup after the last si element
+		private final String tail;
+		// prefix of si and t elements, empty if sst is in default namespace
+		private final String prefix;
+
+		private Original(List<String> strings, String head, String middle, String tail, String prefix) {
+			this.strings = Collections.unmodifiableList(new ArrayList<String>(strings));
+			this.head = head;
+			this.middle = middle;
+			this.tail = tail;
+			this.prefix = prefix;
+		}
+
+		/**
+		 * reads markup of sharedStrings.xml of the package.
+		 * 
+		 * @param strings
+		 *            texts of its si elements, as read by SheetReader
+		 */
+		public static Original read(OOXMLPackage xlsx, List<String> strings) throws IOException {
+			InputStream is = null;
+			try {
+				is = xlsx.getInputStream(SheetReader.SHARED_STRINGS_XML);
+				Document doc = XMLDocHelper.newDocumentBuilder().parse(is);
+
+				// count is dropped since it is optional and changes with
+				// cells, uniqueCount is written by each render
+				Element sst = doc.getDocumentElement();
+				sst.removeAttribute("count");
+				sst.setAttribute("uniqueCount", COUNT_MARK);
+
+				// new strings go after the last si, before extLst if any
+				Node last = null;
+				for (Node n = sst.getFirstChild(); n != null; n = n.getNextSibling()) {
+					if (n.getNodeType() == Node.ELEMENT_NODE && "si".equals(n.getLocalName()))
+						last = n;
+				}
+				Node next = last != null ? last.getNextSibling() : sst.getFirstChild();
+				sst.insertBefore(doc.createProcessingInstruction(INSERT_MARK, ""), next);
+
+				Transformer transformer = XMLDocHelper.getTransformer();
+				transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+				StringWriter sw = new StringWriter();
+				transformer.transform(new DOMSource(doc), new StreamResult(sw));
+				String xml = sw.toString();
+
+				int count = xml.indexOf(COUNT_MARK);
+				int insert = xml.indexOf("<?" + INSERT_MARK, count);
+				if (count < 0 || insert < 0)
+					throw new IOException("cannot split markup of " + SheetReader.SHARED_STRINGS_XML);
+				int insertEnd = xml.indexOf("?>", insert) + 2;
+
+				String prefix = sst.getPrefix() == null ? "" : sst.getPrefix() + ":";
+				return new Original(strings, xml.substring(0, count), xml.substring(count + COUNT_MARK.length(),
+						insert), xml.substring(insertEnd), prefix);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("cannot read " + SheetReader.SHARED_STRINGS_XML, e);
+			} finally {
+				CloseableHelper.safeClose(is);
+			}
+		}
+
+		public List<String> getStrings() {
+			return strings;
+		}
+	}
+
+	private final List<String> strings;
+	private final Map<String, Integer> indexes;
+	// markup written for original strings, or null to generate all of them
+	private final Original original;
+
+	public SharedStringTable() {
+		this(new ArrayList<String>(0), null);
+	}
+
+	/**
+	 * table of the original strings. all strings are written as plain text.
+	 */
+	public SharedStringTable(List<String> original) {
+		this(original, null);
+	}
+
+	/**
+	 * table of the original workbook. original strings are written with their
+	 * markup.
+	 */
+	public SharedStringTable(Original original) {
+		this(original.strings, original);
+	}
+
+	private SharedStringTable(List<String> originalStrings, Original original) {
+		this.original = original;
+		strings = new ArrayList<String>(originalStrings);
+		indexes = new HashMap<String, Integer>(Math.max(16, originalStrings.size() * 2));
+		for (int i = 0; i < originalStrings.size(); i++) {
+			if (!indexes.containsKey(originalStrings.get(i)))
+				indexes.put(originalStrings.get(i), i);
+		}
+	}
+
+	/**
+	 * returns index of the string, adding it if it is new.
+	 */
+	public int add(String s) {
+		Integer index = indexes.get(s);
+		if (index != null)
+			return index;
+
+		int i = strings.size();
+		strings.add(s);
+		indexes.put(s, i);
+		return i;
+	}
+
+	public int size() {
+		return strings.size();
+	}
+
+	public String get(int index) {
+		return strings.get(index);
+	}
+
+	/**
+	 * writes sharedStrings.xml. os is not closed.
+	 */
+	public void write(OutputStream os) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+		writer.write(XML_DECLARATION);
+		if (original == null) {
+			writer.write("<sst xmlns=\"" + SST_NS + "\" uniqueCount=\"" + strings.size() + "\">");
+			writeStrings(writer, 0, "");
+			writer.write("</sst>");
+		} else {
+			writer.write(original.head);
+			writer.write(Integer.toString(strings.size()));
+			writer.write(original.middle);
+			writeStrings(writer, original.strings.size(), original.prefix);
+			writer.write(original.tail);
+		}
+		writer.flush();
+	}
+
+	private void writeStrings(Writer writer, int from, String prefix) throws IOException {
+		for (int i = from; i < strings.size(); i++) {
+			String s = strings.get(i);
+			writer.write("<" + prefix + "si>");
+			if (needsPreserve(s))
+				writer.write("<" + prefix + "t xml:space=\"preserve\">");
+			else
+				writer.write("<" + prefix + "t>");
+			ChartSheetTemplate.writeText(writer, s);
+			writer.write("</" + prefix + "t></" + prefix + "si>");
+		}
+	}
+
+	private static boolean needsPreserve(String s) {
+		if (s.isEmpty())
+			return false;
+		return Character.isWhitespace(s.charAt(0)) || Character.isWhitespace(s.charAt(s.length() - 1));
+	}
+}
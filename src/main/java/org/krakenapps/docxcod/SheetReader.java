@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.krakenapps.docxcod.util.CloseableHelper;
+import org.krakenapps.docxcod.util.XMLDocHelper;
+
+/**
+ * reads shared strings and cells of SpreadsheetML parts with StAX, without
+ * building documents. equal texts are returned as one string instance, so
+ * memory held by the results grows with distinct values, not with cells.
+ */
+public class SheetReader {
+	public static final String SHARED_STRINGS_XML = "xl/sharedStrings.xml";
+
+	/**
+	 * receives cells in document order. row and column are zero based.
+	 */
+	public interface CellHandler {
+		void onCell(int row, int col, String text);
+	}
+
+	/**
+	 * returns shared strings of the workbook, or empty list if it has none.
+	 */
+	public static List<String> readSharedStrings(OOXMLPackage pkg) throws IOException {
+		if (!pkg.hasPart(SHARED_STRINGS_XML))
+			return new ArrayList<String>(0);
+
+		InputStream is = null;
+		try {
+			is = pkg.getInputStream(SHARED_STRINGS_XML);
+			return readSharedStrings(is);
+		} finally {
+			CloseableHelper.safeClose(is);
+		}
+	}
+
+	/**
+	 * reads texts of si elements. rich text runs are concatenated, phonetic
+	 * runs are skipped.
+	 */
+	public static List<String> readSharedStrings(InputStream is) throws IOException {
+		List<String> list = new ArrayList<String>();
+		Map<String, String> pool = new HashMap<String, String>();
+
+		XMLStreamReader reader = null;
+		try {
+			reader = XMLDocHelper.newXMLStreamReader(is);
+			StringBuilder sb = new StringBuilder();
+			boolean inItem = false;
+			int phonetic = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if (name.equals("si")) {
+						inItem = true;
+						sb.setLength(0);
+					} else if (name.equals("rPh")) {
+						phonetic++;
+					} else if (name.equals("t") && inItem && phonetic == 0) {
+						sb.append(reader.getElementText());
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String name = reader.getLocalName();
+					if (name.equals("si")) {
+						inItem = false;
+						list.add(intern(pool, sb.toString()));
+					} else if (name.equals("rPh")) {
+						phonetic--;
+					}
+				}
+			}
+			return list;
+		} catch (XMLStreamException e) {
+			throw new IOException("cannot read shared strings", e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	/**
+	 * reads cells of the sheet part into a grid.
+	 */
+	public static CellGrid readGrid(OOXMLPackage pkg, String sheetPart, List<String> sharedStrings)
+			throws IOException {
+		final CellGrid grid = new CellGrid();
+		InputStream is = null;
+		try {
+			is = pkg.getInputStream(sheetPart);
+			readCells(is, sharedStrings, new CellHandler() {
+				@Override
+				public void onCell(int row, int col, String text) {
+					grid.put(row, col, text);
+				}
+			});
+		} finally {
+			CloseableHelper.safeClose(is);
+		}
+		return grid;
+	}
+
+	/**
+	 * reads cells of a worksheet. text of shared string cell (t="s") is taken
+	 * from sharedStrings, inline string cell (t="inlineStr") from its is
+	 * element, and other cells from v element. cell without content has
+	 * empty text. cell without reference follows the previous one.
+	 */
+	public static void readCells(InputStream is, List<String> sharedStrings, CellHandler handler)
+			throws IOException {
+		Map<String, String> pool = new HashMap<String, String>();
+
+		XMLStreamReader reader = null;
+		try {
+			reader = XMLDocHelper.newXMLStreamReader(is);
+
+			int row = -1;
+			int col = -1;
+			String type = null;
+			String value = null;
+			StringBuilder inline = new StringBuilder();
+			boolean inCell = false;
+			boolean inInline = false;
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if (name.equals("row")) {
+						String r = reader.getAttributeValue(null, "r");
+						row = r != null ? Integer.parseInt(r) - 1 : row + 1;
+						col = -1;
+					} else if (name.equals("c")) {
+						String r = reader.getAttributeValue(null, "r");
+						long coord = r != null ? CellGrid.parseAddress(r) : -1;
+						if (coord >= 0) {
+							row = CellGrid.row(coord);
+							col = CellGrid.column(coord);
+						} else {
+							col++;
+						}
+						type = reader.getAttributeValue(null, "t");
+						value = null;
+						inline.setLength(0);
+						inCell = true;
+					} else if (inCell && name.equals("v")) {
+						value = reader.getElementText();
+					} else if (inCell && name.equals("is")) {
+						inInline = true;
+					} else if (inInline && name.equals("t")) {
+						inline.append(reader.getElementText());
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String name = reader.getLocalName();
+					if (name.equals("is")) {
+						inInline = false;
+					} else if (name.equals("c")) {
+						inCell = false;
+						handler.onCell(row, col, cellText(type, value, inline, sharedStrings, pool));
+					}
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("cannot read sheet", e);
+		} catch (NumberFormatException e) {
+			throw new IOException("cannot read sheet", e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	private static String cellText(String type, String value, StringBuilder inline, List<String> sharedStrings,
+			Map<String, String> pool) {
+		if ("s".equals(type)) {
+			if (value == null)
+				return "";
+			int idx = Integer.parseInt(value.trim());
+			return idx >= 0 && idx < sharedStrings.size() ? sharedStrings.get(idx) : "";
+		} else if ("inlineStr".equals(type)) {
+			return intern(pool, inline.toString());
+		} else {
+			return value != null ? intern(pool, value) : "";
+		}
+	}
+
+	private static String intern(Map<String, String> pool, String s) {
+		String old = pool.get(s);
+		if (old != null)
+			return old;
+		pool.put(s, s);
+		return s;
+	}
+
+	private static void close(XMLStreamReader reader) {
+		if (reader == null)
+			return;
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+		}
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.krakenapps.docxcod.util.CloseableHelper;
+import org.krakenapps.docxcod.util.XMLDocHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * event based version of {@link MergeFieldParser}. document is rewritten while
+ * it is read, so memory use is bounded by the largest field instead of the
+ * whole document.
+ *
+ * runs and simple fields are buffered one at a time. runs from begin fldChar
+ * to matching end fldChar are buffered together, and replaced by the run
+ * holding KMagicNode as {@link MergeFieldParser} does.
+ */
+public class StreamingMergeFieldParser implements OOXMLProcessor {
+	private static final String DOCUMENT_XML = "word/document.xml";
+	private static final String W_NS = XMLDocHelper.OOXML_NAMESPACES.get("w");
+
+	private static final QName RUN = new QName(W_NS, "r");
+	private static final QName TEXT = new QName(W_NS, "t");
+	private static final QName FLD_CHAR = new QName(W_NS, "fldChar");
+	private static final QName FLD_CHAR_TYPE = new QName(W_NS, "fldCharType");
+	private static final QName INSTR_TEXT = new QName(W_NS, "instrText");
+	private static final QName FLD_SIMPLE = new QName(W_NS, "fldSimple");
+	private static final QName INSTR = new QName(W_NS, "instr");
+	private static final QName MAGIC_NODE = new QName("KMagicNode");
+
+	private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+	@Override
+	public void process(OOXMLPackage pkg, Map<String, Object> rootMap) {
+		InputStream is = null;
+		OutputStream os = null;
+		boolean completed = false;
+		try {
+			is = pkg.getInputStream(DOCUMENT_XML);
+			os = pkg.getOutputStream(DOCUMENT_XML);
+			rewrite(is, os);
+			os.close();
+			completed = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			CloseableHelper.safeClose(is);
+			if (!completed && os != null)
+				PartStore.abort(os);
+		}
+	}
+
+	/**
+	 * reads document from is and writes it to os, replacing merge fields
+	 * with KMagicNode. streams are not closed.
+	 */
+	public void rewrite(InputStream is, OutputStream os) throws XMLStreamException {
+		XMLEventReader reader = XMLDocHelper.newXMLEventReader(is);
+		XMLEventWriter writer = XMLDocHelper.newXMLEventWriter(os);
+		try {
+			Rewriter rewriter = new Rewriter(writer, XMLEventFactory.newInstance());
+			while (reader.hasNext())
+				rewriter.add(reader.nextEvent());
+			rewriter.finish();
+			writer.flush();
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * buffered sibling of runs in a field: a run, or other element or text
+	 * which is kept in place.
+	 */
+	private static class Item {
+		private final List<XMLEvent> events;
+		private final boolean run;
+		private String fldCharType;
+		private String instrText;
+
+		private Item(List<XMLEvent> events) {
+			this.events = events;
+			XMLEvent first = events.get(0);
+			this.run = first.isStartElement() && first.asStartElement().getName().equals(RUN);
+
+			// fldChar is looked up in children of the run only, while
+			// instrText is collected from all descendants.
+			StringBuilder sb = new StringBuilder();
+			boolean fldCharFound = false;
+			int depth = 0;
+			int instrDepth = 0;
+			for (XMLEvent e : events) {
+				if (e.isStartElement()) {
+					StartElement s = e.asStartElement();
+					depth++;
+					if (instrDepth > 0 || s.getName().equals(INSTR_TEXT))
+						instrDepth++;
+					if (run && depth == 2 && !fldCharFound && s.getName().equals(FLD_CHAR)) {
+						fldCharFound = true;
+						Attribute type = s.getAttributeByName(FLD_CHAR_TYPE);
+						fldCharType = type == null ? null : type.getValue();
+					}
+				} else if (e.isEndElement()) {
+					depth--;
+					if (instrDepth > 0)
+						instrDepth--;
+				} else if (e.isCharacters() && instrDepth > 0) {
+					sb.append(e.asCharacters().getData());
+				}
+			}
+			instrText = sb.toString();
+		}
+	}
+
+	/**
+	 * runs from begin fldChar, buffered until matching end fldChar.
+	 */
+	private static class Field {
+		private final List<Item> items = new ArrayList<Item>();
+		private final StringBuilder instrText = new StringBuilder();
+		// instrText is collected until separate or end fldChar
+		private boolean collecting = true;
+		// index of last separate fldChar run
+		private int separateIndex = -1;
+
+		private Field(Item begin) {
+			items.add(begin);
+		}
+	}
+
+	private class Rewriter {
+		private final XMLEventWriter writer;
+		private final XMLEventFactory eventFactory;
+
+		// subtree being buffered
+		private List<XMLEvent> capture;
+		private int captureDepth;
+
+		private Field field;
+
+		private Rewriter(XMLEventWriter writer, XMLEventFactory eventFactory) {
+			this.writer = writer;
+			this.eventFactory = eventFactory;
+		}
+
+		private void add(XMLEvent e) throws XMLStreamException {
+			if (capture != null) {
+				capture.add(e);
+				if (e.isStartElement()) {
+					captureDepth++;
+				} else if (e.isEndElement() && --captureDepth == 0) {
+					List<XMLEvent> events = capture;
+					capture = null;
+					onSubtree(events);
+				}
+				return;
+			}
+
+			if (e.isStartElement()) {
+				QName name = e.asStartElement().getName();
+				if (name.equals(RUN) || name.equals(FLD_SIMPLE) || field != null) {
+					capture = new ArrayList<XMLEvent>();
+					capture.add(e);
+					captureDepth = 1;
+					return;
+				}
+				writer.add(e);
+				return;
+			}
+
+			if (field != null) {
+				if (!e.isEndElement()) {
+					field.items.add(new Item(Collections.singletonList(e)));
+					return;
+				}
+				// parent closed before end fldChar
+				logger.warn("no coressponding begin & end fldChar found");
+				flushField();
+			}
+
+			writer.add(e);
+		}
+
+		private void finish() throws XMLStreamException {
+			if (field != null)
+				flushField();
+		}
+
+		private void onSubtree(List<XMLEvent> events) throws XMLStreamException {
+			QName name = events.get(0).asStartElement().getName();
+			if (field == null && name.equals(FLD_SIMPLE)) {
+				writeFldSimple(events);
+				return;
+			}
+
+			Item item = new Item(events);
+			if (!item.run) {
+				// kept in place, and rewritten after the field is resolved
+				field.items.add(item);
+				if (field.collecting)
+					field.instrText.append(item.instrText);
+				return;
+			}
+
+			if ("begin".equals(item.fldCharType)) {
+				// nested begin takes over as MergeFieldParser does
+				if (field != null)
+					flushField();
+				field = new Field(item);
+				return;
+			}
+
+			if (field == null) {
+				write(events, 0, events.size());
+				return;
+			}
+
+			field.items.add(item);
+			if (field.collecting) {
+				field.instrText.append(item.instrText);
+				if (item.fldCharType != null && !item.fldCharType.equals("separate")
+						&& !item.fldCharType.equals("end")) {
+					// not a field MergeFieldParser knows
+					flushField();
+					return;
+				}
+			}
+
+			if ("separate".equals(item.fldCharType)) {
+				field.collecting = false;
+				field.separateIndex = field.items.size() - 1;
+			} else if ("end".equals(item.fldCharType)) {
+				field.collecting = false;
+				writeField();
+			}
+		}
+
+		private void writeField() throws XMLStreamException {
+			Field f = field;
+			field = null;
+
+			String directive = Directive.extractDirective(f.instrText.toString());
+			logger.debug("{} {}", new Object[] { "w:fldChar", directive });
+
+			// result is put in the separate fldChar run if any, as
+			// MergeFieldParser does. other runs are removed.
+			int result = f.separateIndex >= 0 ? f.separateIndex : 0;
+
+			for (int i = 0; i < f.items.size(); i++) {
+				Item item = f.items.get(i);
+				if (i == result)
+					writeMagicRun(item.events, directive);
+				else if (!item.run)
+					replay(item.events);
+			}
+		}
+
+		private void flushField() throws XMLStreamException {
+			Field f = field;
+			field = null;
+			for (Item item : f.items) {
+				if (item.run)
+					write(item.events, 0, item.events.size());
+				else
+					replay(item.events);
+			}
+		}
+
+		private void writeFldSimple(List<XMLEvent> events) throws XMLStreamException {
+			Attribute instr = events.get(0).asStartElement().getAttributeByName(INSTR);
+			int run = -1;
+			int runEnd = -1;
+			for (int i = 1; i < events.size() - 1; i = endOf(events, i) + 1) {
+				XMLEvent e = events.get(i);
+				if (e.isStartElement() && e.asStartElement().getName().equals(RUN)
+						&& indexOfChild(events, i, TEXT) >= 0) {
+					run = i;
+					runEnd = endOf(events, i);
+					break;
+				}
+			}
+
+			if (instr == null || run < 0) {
+				logger.warn("not-supported fldSimple node");
+				replayChildren(events);
+				return;
+			}
+
+			String directive = Directive.extractDirective(instr.getValue());
+			logger.debug("{} {}", new Object[] { "w:fldSimple", directive });
+			writeMagicRun(events.subList(run, runEnd + 1), directive);
+		}
+
+		private void writeMagicRun(List<XMLEvent> run, String directive) throws XMLStreamException {
+			// replace contents of first w:t, so that formatting of the run is
+			// preserved.
+			int text = indexOfChild(run, 0, TEXT);
+			if (text >= 0) {
+				int textEnd = endOf(run, text);
+				write(run, 0, text + 1);
+				writeMagicNode(directive);
+				write(run, textEnd, run.size());
+				return;
+			}
+
+			int fldChar = indexOfChild(run, 0, FLD_CHAR);
+			if (fldChar >= 0) {
+				QName name = run.get(fldChar).asStartElement().getName();
+				QName t = new QName(name.getNamespaceURI(), TEXT.getLocalPart(), name.getPrefix());
+				write(run, 0, fldChar);
+				write(run, endOf(run, fldChar) + 1, run.size() - 1);
+				writer.add(eventFactory.createStartElement(t, null, null));
+				writeMagicNode(directive);
+				writer.add(eventFactory.createEndElement(t, null));
+				write(run, run.size() - 1, run.size());
+				return;
+			}
+
+			logger.warn("not-supported fldChar type node");
+			write(run, 0, run.size());
+		}
+
+		private void writeMagicNode(String directive) throws XMLStreamException {
+			writer.add(eventFactory.createStartElement(MAGIC_NODE, null, null));
+			String s = directive == null ? "" : directive;
+			// "]]>" cannot appear in a cdata section
+			int p;
+			while ((p = s.indexOf("]]>")) >= 0) {
+				writer.add(eventFactory.createCData(s.substring(0, p + 2)));
+				s = s.substring(p + 2);
+			}
+			writer.add(eventFactory.createCData(s));
+			writer.add(eventFactory.createEndElement(MAGIC_NODE, null));
+		}
+
+		// writes subtree, rewriting fields in it
+		private void replay(List<XMLEvent> events) throws XMLStreamException {
+			Rewriter r = new Rewriter(writer, eventFactory);
+			for (XMLEvent e : events)
+				r.add(e);
+			r.finish();
+		}
+
+		// writes element as is, rewriting fields in its children
+		private void replayChildren(List<XMLEvent> events) throws XMLStreamException {
+			writer.add(events.get(0));
+			replay(events.subList(1, events.size() - 1));
+			writer.add(events.get(events.size() - 1));
+		}
+
+		private void write(List<XMLEvent> events, int from, int to) throws XMLStreamException {
+			for (int i = from; i < to; i++)
+				writer.add(events.get(i));
+		}
+	}
+
+	// returns index of first child element of the element at start
+	private static int indexOfChild(List<XMLEvent> events, int start, QName name) {
+		int end = endOf(events, start);
+		for (int i = start + 1; i < end; i = endOf(events, i) + 1) {
+			XMLEvent e = events.get(i);
+			if (e.isStartElement() && e.asStartElement().getName().equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	// returns index of matching end element, or index itself for others
+	private static int endOf(List<XMLEvent> events, int index) {
+		if (!events.get(index).isStartElement())
+			return index;
+
+		int depth = 0;
+		for (int i = index; i < events.size(); i++) {
+			XMLEvent e = events.get(i);
+			if (e.isStartElement())
+				depth++;
+			else if (e.isEndElement() && --depth == 0)
+				return i;
+		}
+		return events.size() - 1;
+	}
+}
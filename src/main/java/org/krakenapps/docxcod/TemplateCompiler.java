@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.krakenapps.docxcod.util.XMLDocHelper;
+import org.krakenapps.docxcod.util.XMLDocHelper.ArrayNodeList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * structural stages of template compilation fused into one pass: merge fields
+ * to magic nodes ({@link MergeFieldParser}), augmented directive hoisting
+ * ({@link AugmentedDirectiveProcessor}), chart helpers
+ * ({@link ChartDirectiveParser}) and unwrapping magic nodes to FreeMarker
+ * syntax ({@link MagicNodeUnwrapper}).
+ *
+ * result is same as applying them in that order, but the part is traversed
+ * once to find fields and charts, and serialized once.
+ */
+public class TemplateCompiler implements OOXMLProcessor {
+	private static final String DOCUMENT_XML = "word/document.xml";
+	private static final String C_NS = XMLDocHelper.OOXML_NAMESPACES.get("c");
+
+	private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+	private final String targetPath;
+
+	private final MergeFieldParser mergeFieldParser = new MergeFieldParser();
+	private final AugmentedDirectiveProcessor augmentedDirectiveProcessor = new AugmentedDirectiveProcessor();
+	private final ChartDirectiveParser chartDirectiveParser = new ChartDirectiveParser();
+
+	public TemplateCompiler() {
+		this(DOCUMENT_XML);
+	}
+
+	/**
+	 * @param targetPath
+	 *            main document, header, footer, footnotes or endnotes part.
+	 *            charts are handled in main document only, because chart
+	 *            helpers add relationships of main document.
+	 */
+	public TemplateCompiler(String targetPath) {
+		this.targetPath = PartStore.normalizeName(targetPath);
+	}
+
+	@Override
+	public void process(OOXMLPackage pkg, Map<String, Object> rootMap) {
+		try {
+			compile(pkg, rootMap);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * compiles the part, or throws exception leaving the part as it is.
+	 */
+	public void compile(OOXMLPackage pkg, Map<String, Object> rootMap) throws IOException {
+		if (rootMap != null)
+			chartDirectiveParser.putHelperFunctions(pkg, rootMap);
+
+		OutputStream os = null;
+		boolean completed = false;
+		try {
+			Document doc = pkg.getDocument(targetPath);
+			compile(doc);
+
+			// serialized straight through the unwrapper, without a copy of
+			// the whole part in between
+			os = pkg.getOutputStream(targetPath);
+			Writer writer = new BufferedWriter(new MagicNodeUnwrapper.UnwrappingWriter(new BufferedWriter(
+					new OutputStreamWriter(os, "UTF-8"))));
+			XMLDocHelper.save(doc, writer, true);
+			writer.close();
+			completed = true;
+
+			logger.trace("compiled {}", targetPath);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("cannot compile " + targetPath, e);
+		} finally {
+			if (!completed && os != null)
+				PartStore.abort(os);
+		}
+	}
+
+	private void compile(Document doc) {
+		ArrayNodeList fieldNodes = new ArrayNodeList();
+		List<Node> chartNodes = new ArrayList<Node>();
+
+		// preorder traversal, same order as //* of xpath
+		Node n = doc.getDocumentElement();
+		while (n != null) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				String name = n.getNodeName();
+				if (name.equals("w:fldChar") || name.equals("w:instrText") || name.equals("w:fldSimple"))
+					fieldNodes.add(n);
+				else if ("chart".equals(n.getLocalName()) && C_NS.equals(n.getNamespaceURI()))
+					chartNodes.add(n);
+			}
+
+			if (n.getFirstChild() != null) {
+				n = n.getFirstChild();
+				continue;
+			}
+			while (n != null && n.getNextSibling() == null)
+				n = n.getParentNode();
+			if (n != null)
+				n = n.getNextSibling();
+		}
+
+		List<Node> magicNodes = mergeFieldParser.rewriteFields(doc, fieldNodes);
+
+		for (Node magicNode : magicNodes) {
+			if (isAttached(doc, magicNode))
+				augmentedDirectiveProcessor.hoist(doc, magicNode);
+		}
+
+		if (!targetPath.equals(DOCUMENT_XML))
+			return;
+
+		// charts in removed field results are gone
+		for (Node chartNode : chartNodes) {
+			if (isAttached(doc, chartNode))
+				chartDirectiveParser.InsertChartHelperMagicNode(doc, chartNode);
+		}
+	}
+
+	private static boolean isAttached(Document doc, Node n) {
+		while (n != null && n != doc)
+			n = n.getParentNode();
+		return n == doc;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.krakenapps.docxcod.PartStore.Abortable;
+
+/**
+ * stores all documents as entries of one zip archive. a document is kept in
+ * memory until its stream is closed, then added as an entry, so entries of
+ * concurrent renders are not interleaved. documents are stored without
+ * compression because docx is already compressed.
+ */
+public class ZipOutputSink extends OutputSink {
+	private final ZipOutputStream zos;
+	private boolean closed = false;
+
+	/**
+	 * @param os
+	 *            stream the archive is written to. it is closed with the sink.
+	 */
+	public ZipOutputSink(OutputStream os) {
+		this.zos = new ZipOutputStream(os);
+	}
+
+	@Override
+	public OutputStream openOutputStream(final String name) throws IOException {
+		synchronized (zos) {
+			if (closed)
+				throw new IOException("sink is closed");
+		}
+
+		class EntryOutputStream extends ByteArrayOutputStream implements Abortable {
+			private boolean done = false;
+
+			EntryOutputStream() {
+				super(64 * 1024);
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (done)
+					return;
+				done = true;
+				putEntry(PartStore.normalizeName(name), buf, count);
+			}
+
+			@Override
+			public void abort() {
+				done = true;
+			}
+		}
+
+		return new EntryOutputStream();
+	}
+
+	private void putEntry(String name, byte[] b, int len) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(len);
+		entry.setCompressedSize(len);
+		CRC32 crc = new CRC32();
+		crc.update(b, 0, len);
+		entry.setCrc(crc.getValue());
+
+		synchronized (zos) {
+			if (closed)
+				throw new IOException("sink is closed");
+			zos.putNextEntry(entry);
+			zos.write(b, 0, len);
+			zos.closeEntry();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (zos) {
+			if (closed)
+				return;
+			closed = true;
+			zos.close();
+		}
+	}
+}
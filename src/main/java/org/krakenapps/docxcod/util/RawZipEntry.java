@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod.util;
+
+import java.util.Calendar;
+
+/**
+ * zip entry as stored in the source archive. compressed bytes are referenced,
+ * not copied, so the entry can be written to another archive without
+ * inflating and deflating it again.
+ */
+public class RawZipEntry {
+	private final String name;
+	private final int flags;
+	private final int method;
+	private final int dosTime;
+	private final long crc;
+	private final long compressedSize;
+	private final long size;
+	private final byte[] buffer;
+	private final int dataOffset;
+
+	public RawZipEntry(String name, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+			byte[] buffer, int dataOffset) {
+		this.name = name;
+		this.flags = flags;
+		this.method = method;
+		this.dosTime = dosTime;
+		this.crc = crc;
+		this.compressedSize = compressedSize;
+		this.size = size;
+		this.buffer = buffer;
+		this.dataOffset = dataOffset;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public int getMethod() {
+		return method;
+	}
+
+	public int getDosTime() {
+		return dosTime;
+	}
+
+	/**
+	 * returns modification time in local time zone, as
+	 * {@link java.util.zip.ZipEntry#getTime()} does.
+	 */
+	public long getTime() {
+		Calendar c = Calendar.getInstance();
+		c.clear();
+		c.set(((dosTime >> 25) & 0x7f) + 1980, ((dosTime >> 21) & 0x0f) - 1, (dosTime >> 16) & 0x1f,
+				(dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e);
+		return c.getTimeInMillis();
+	}
+
+	public long getCrc() {
+		return crc;
+	}
+
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public int getDataOffset() {
+		return dataOffset;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[%s, method=%d, crc=%08x, csize=%d, size=%d]", name, method, crc, compressedSize, size);
+	}
+}
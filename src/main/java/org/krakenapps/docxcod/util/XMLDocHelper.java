@@ -16,17 +16,33 @@
 package org.krakenapps.docxcod.util;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
@@ -39,98 +55,432 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
 import org.krakenapps.docxcod.OOXMLPackage;
+import org.krakenapps.docxcod.PartStore;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import static org.krakenapps.docxcod.util.CloseableHelper.safeClose;
 
 public class XMLDocHelper {
-	static private DocumentBuilderFactory dbFactory;
-	static private XPathFactory xpathFactory;
+	// jaxp factories are not thread-safe. they are used only while creating
+	// per-thread instances below, under their own lock.
+	static private final DocumentBuilderFactory dbFactory;
+	static private final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+	static private final XMLInputFactory xmlInputFactory;
+	static private final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+	static {
+		dbFactory = DocumentBuilderFactory.newInstance();
+		dbFactory.setNamespaceAware(true);
+
+		xmlInputFactory = XMLInputFactory.newInstance();
+		xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	}
+
+	static private final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>();
+	static private final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
+	static private final ThreadLocal<XPathFactory> xpathFactories = new ThreadLocal<XPathFactory>() {
+		@Override
+		protected XPathFactory initialValue() {
+			return XPathFactory.newInstance();
+		}
+	};
 
+	/**
+	 * returns document builder of the calling thread, reset to its initial
+	 * state. it is valid until next call in the same thread, so do not keep
+	 * it.
+	 */
 	public static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
-		if (dbFactory == null) {
-			dbFactory = DocumentBuilderFactory.newInstance();
-			dbFactory.setNamespaceAware(true);
+		DocumentBuilder builder = documentBuilders.get();
+		if (builder == null) {
+			synchronized (dbFactory) {
+				builder = dbFactory.newDocumentBuilder();
+			}
+			documentBuilders.set(builder);
+		} else {
+			builder.reset();
 		}
-		return dbFactory.newDocumentBuilder();
+		return builder;
 	}
 
-	public static XPath newXPath(Document doc) {
-		if (xpathFactory == null) {
-			xpathFactory = XPathFactory.newInstance();
+	/**
+	 * returns transformer of the calling thread, reset to its initial state.
+	 * it is valid until next call in the same thread, so do not keep it.
+	 */
+	public static Transformer getTransformer() throws TransformerConfigurationException {
+		Transformer transformer = transformers.get();
+		if (transformer == null) {
+			synchronized (transformerFactory) {
+				transformer = transformerFactory.newTransformer();
+			}
+			transformers.set(transformer);
+		} else {
+			transformer.reset();
 		}
+		return transformer;
+	}
+
+	/**
+	 * returns namespace aware, coalescing StAX event reader. the stream is not
+	 * closed by the reader.
+	 */
+	public static XMLEventReader newXMLEventReader(InputStream is) throws XMLStreamException {
+		synchronized (xmlInputFactory) {
+			return xmlInputFactory.createXMLEventReader(is);
+		}
+	}
+
+	/**
+	 * returns namespace aware, coalescing StAX stream reader. the stream is
+	 * not closed by the reader.
+	 */
+	public static XMLStreamReader newXMLStreamReader(InputStream is) throws XMLStreamException {
+		synchronized (xmlInputFactory) {
+			return xmlInputFactory.createXMLStreamReader(is);
+		}
+	}
 
-		XPath xpath = xpathFactory.newXPath();
+	/**
+	 * returns StAX event writer producing UTF-8. the stream is not closed by
+	 * the writer.
+	 */
+	public static XMLEventWriter newXMLEventWriter(OutputStream os) throws XMLStreamException {
+		synchronized (xmlOutputFactory) {
+			return xmlOutputFactory.createXMLEventWriter(os, "UTF-8");
+		}
+	}
+
+	/**
+	 * returns new xpath for the document. unlike builders and transformers,
+	 * xpath is not shared because callers keep it across other calls; only
+	 * its factory is kept per thread.
+	 */
+	public static XPath newXPath(Document doc) {
+		XPath xpath = xpathFactories.get().newXPath();
 		xpath.setNamespaceContext(new DocumentNamespaceContext(doc));
 		return xpath;
 	}
 
-	private static class DocumentNamespaceContext implements NamespaceContext {
-		Document doc;
-		String unnamedPrefix = null;
-		String unnamedURI = null;
+	/**
+	 * prefixes conventionally used in OOXML parts. prefixes bound to other
+	 * namespaces on the document element take precedence.
+	 */
+	public static final Map<String, String> OOXML_NAMESPACES;
+
+	static {
+		Map<String, String> m = new HashMap<String, String>();
+		m.put("w", "http://schemas.openxmlformats.org/wordprocessingml/2006/main");
+		m.put("r", "http://schemas.openxmlformats.org/officeDocument/2006/relationships");
+		m.put("m", "http://schemas.openxmlformats.org/officeDocument/2006/math");
+		m.put("wp", "http://schemas.openxmlformats.org/drawingml/2006/wordprocessingDrawing");
+		m.put("a", "http://schemas.openxmlformats.org/drawingml/2006/main");
+		m.put("pic", "http://schemas.openxmlformats.org/drawingml/2006/picture");
+		m.put("c", "http://schemas.openxmlformats.org/drawingml/2006/chart");
+		m.put("cdr", "http://schemas.openxmlformats.org/drawingml/2006/chartDrawing");
+		m.put("dgm", "http://schemas.openxmlformats.org/drawingml/2006/diagram");
+		m.put("xdr", "http://schemas.openxmlformats.org/drawingml/2006/spreadsheetDrawing");
+		m.put("x", "http://schemas.openxmlformats.org/spreadsheetml/2006/main");
+		m.put("mc", "http://schemas.openxmlformats.org/markup-compatibility/2006");
+		m.put("ve", "http://schemas.openxmlformats.org/markup-compatibility/2006");
+		m.put("o", "urn:schemas-microsoft-com:office:office");
+		m.put("v", "urn:schemas-microsoft-com:vml");
+		m.put("w10", "urn:schemas-microsoft-com:office:word");
+		m.put("wne", "http://schemas.microsoft.com/office/word/2006/wordml");
+		m.put("w14", "http://schemas.microsoft.com/office/word/2010/wordml");
+		m.put("wp14", "http://schemas.microsoft.com/office/word/2010/wordprocessingDrawing");
+		m.put("wpc", "http://schemas.microsoft.com/office/word/2010/wordprocessingCanvas");
+		m.put("wpg", "http://schemas.microsoft.com/office/word/2010/wordprocessingGroup");
+		m.put("wpi", "http://schemas.microsoft.com/office/word/2010/wordprocessingInk");
+		m.put("wps", "http://schemas.microsoft.com/office/word/2010/wordprocessingShape");
+		m.put("x14ac", "http://schemas.microsoft.com/office/spreadsheetml/2009/9/ac");
+		m.put("cp", "http://schemas.openxmlformats.org/package/2006/metadata/core-properties");
+		m.put("dc", "http://purl.org/dc/elements/1.1/");
+		m.put("dcterms", "http://purl.org/dc/terms/");
+		m.put("xsi", "http://www.w3.org/2001/XMLSchema-instance");
+		OOXML_NAMESPACES = Collections.unmodifiableMap(m);
+	}
 
-		HashMap<String, String> uriMap = new HashMap<String, String>();
+	private static final String SCANNED_NAMESPACES_KEY = "org.krakenapps.docxcod.scannedNamespaces";
+
+	/**
+	 * resolves prefix in this order: "DEF" and "" to default namespace of the
+	 * document element, declarations on the document element,
+	 * {@link #OOXML_NAMESPACES}, and declarations anywhere in the document.
+	 * the last one walks whole document, so its result is cached in the
+	 * document.
+	 */
+	private static class DocumentNamespaceContext implements NamespaceContext {
+		private final Document doc;
+		private final Element root;
 
 		public DocumentNamespaceContext(Document doc) {
 			this.doc = doc;
-			if (doc.lookupNamespaceURI(null) != null) {
-				unnamedPrefix = "DEF";
-				unnamedURI = doc.lookupNamespaceURI(null);
+			this.root = doc.getDocumentElement();
+		}
+
+		@Override
+		public String getNamespaceURI(String prefix) {
+			if (root != null) {
+				if (prefix.equals("DEF") || prefix.length() == 0) {
+					String uri = root.lookupNamespaceURI(null);
+					if (uri != null)
+						return uri;
+				}
+
+				String uri = root.lookupNamespaceURI(prefix);
+				if (uri != null)
+					return uri;
 			}
-			try {
-				XPath xpath = xpathFactory.newXPath();
-				NodeList nodeList_ = evaluateXPath(xpath, "//*/namespace::*", doc);
-
-				for (Node n : new NodeListIterAdapter(nodeList_)) {
-					String nsName = n.getNodeName();
-					String nsURI = n.getTextContent();
-					if (nsName.length() > 6) {
-						nsName = nsName.substring(6);
-					} else {
-						nsName = ""; // empty(default) namespace
-					}
-					uriMap.put(nsName, nsURI);
+
+			String uri = OOXML_NAMESPACES.get(prefix);
+			if (uri != null)
+				return uri;
+
+			return getScannedNamespaces(doc).get(prefix);
+		}
+
+		@Override
+		public String getPrefix(String namespaceURI) {
+			// no need to implement for using xpath
+			return null;
+		}
+
+		@Override
+		public Iterator<?> getPrefixes(String namespaceURI) {
+			// no need to implement for using xpath
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> getScannedNamespaces(Document doc) {
+		Map<String, String> uriMap = (Map<String, String>) doc.getUserData(SCANNED_NAMESPACES_KEY);
+		if (uriMap != null)
+			return uriMap;
+
+		uriMap = new HashMap<String, String>();
+		try {
+			XPath xpath = xpathFactories.get().newXPath();
+			NodeList nodeList_ = evaluateXPath(xpath, "//*/namespace::*", doc);
+
+			for (Node n : new NodeListIterAdapter(nodeList_)) {
+				String nsName = n.getNodeName();
+				String nsURI = n.getTextContent();
+				if (nsName.length() > 6) {
+					nsName = nsName.substring(6);
+				} else {
+					nsName = ""; // empty(default) namespace
 				}
-				
-			} catch (XPathExpressionException e) {
+				uriMap.put(nsName, nsURI);
+			}
+		} catch (XPathExpressionException e) {
+		}
+
+		doc.setUserData(SCANNED_NAMESPACES_KEY, uriMap, null);
+		return uriMap;
+	}
+
+	private static final int XPATH_CACHE_SIZE = 256;
+
+	// compiled expression and prefixes it resolved other than default one
+	private static class CachedXPath {
+		private final XPathExpression expr;
+		private final String[] prefixes;
+
+		private CachedXPath(XPathExpression expr, String[] prefixes) {
+			this.expr = expr;
+			this.prefixes = prefixes;
+		}
+
+		// prefixes may be bound to other namespaces on the document element
+		private boolean isValidFor(Element root) {
+			if (root == null)
+				return true;
+			for (String prefix : prefixes) {
+				String uri = root.lookupNamespaceURI(prefix);
+				if (uri != null && !uri.equals(OOXML_NAMESPACES.get(prefix)))
+					return false;
 			}
+			return true;
+		}
+	}
+
+	// compiled expressions are not thread-safe, so each thread has its own
+	// cache. key is default namespace of the document and expression.
+	private static final ThreadLocal<Map<String, CachedXPath>> xpathCaches = new ThreadLocal<Map<String, CachedXPath>>() {
+		@Override
+		protected Map<String, CachedXPath> initialValue() {
+			return new LinkedHashMap<String, CachedXPath>(64, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedXPath> eldest) {
+					return size() > XPATH_CACHE_SIZE;
+				}
+			};
+		}
+	};
+
+	/**
+	 * resolves prefixes with the document while an expression is compiled,
+	 * and records whether any prefix is resolved to other namespace than the
+	 * default one and {@link #OOXML_NAMESPACES}, in which case the compiled
+	 * expression is valid only for the document. other prefixes are recorded,
+	 * so that a cache hit can be checked against bindings of the document
+	 * element of another document. once detached, it resolves
+	 * with those namespaces only, so cached expression does not keep the
+	 * document.
+	 */
+	private static class TrackingNamespaceContext implements NamespaceContext {
+		private final String defaultURI;
+		private NamespaceContext ctx;
+		private boolean documentSpecific = false;
+		private final Set<String> prefixes = new HashSet<String>();
+
+		private TrackingNamespaceContext(String defaultURI, NamespaceContext ctx) {
+			this.defaultURI = defaultURI;
+			this.ctx = ctx;
+		}
+
+		private void detach() {
+			ctx = null;
 		}
 
 		@Override
 		public String getNamespaceURI(String prefix) {
-			if (prefix.equals(unnamedPrefix))
-				return unnamedURI;
-			if (uriMap.containsKey(prefix))
-				return uriMap.get(prefix);
-			else
-				return doc.lookupNamespaceURI(prefix);
+			boolean isDefault = prefix.equals("DEF") || prefix.length() == 0;
+			String expected = isDefault ? defaultURI : OOXML_NAMESPACES.get(prefix);
+			if (ctx == null)
+				return expected;
+
+			if (!isDefault)
+				prefixes.add(prefix);
+
+			String uri = ctx.getNamespaceURI(prefix);
+			// default namespace is part of the cache key
+			if (uri == null || !uri.equals(expected))
+				documentSpecific = true;
+			return uri;
 		}
 
 		@Override
 		public String getPrefix(String namespaceURI) {
-			// no need to implement for using xpath
 			return null;
 		}
 
 		@Override
 		public Iterator<?> getPrefixes(String namespaceURI) {
-			// no need to implement for using xpath
 			return null;
 		}
 	}
 
+	/**
+	 * returns compiled expression for the document. expressions using only
+	 * default namespace and {@link #OOXML_NAMESPACES} are compiled once per
+	 * thread and reused for other documents which do not bind their prefixes
+	 * to other namespaces.
+	 */
+	public static XPathExpression compileXPath(Document doc, String expression) throws XPathExpressionException {
+		Element root = doc.getDocumentElement();
+		String defaultURI = root == null ? null : root.lookupNamespaceURI(null);
+		String key = (defaultURI == null ? "" : defaultURI) + " " + expression;
+
+		Map<String, CachedXPath> cache = xpathCaches.get();
+		CachedXPath cached = cache.get(key);
+		if (cached != null && cached.isValidFor(root))
+			return cached.expr;
+
+		TrackingNamespaceContext ctx = new TrackingNamespaceContext(defaultURI, new DocumentNamespaceContext(doc));
+		XPath xpath = xpathFactories.get().newXPath();
+		xpath.setNamespaceContext(ctx);
+		XPathExpression expr = xpath.compile(expression);
+		if (!ctx.documentSpecific) {
+			// cached for other documents, which must not be kept alive
+			ctx.detach();
+			cache.put(key, new CachedXPath(expr, ctx.prefixes.toArray(new String[ctx.prefixes.size()])));
+		}
+		return expr;
+	}
+
 	public static NodeList evaluateXPath(Document doc, String expression) throws XPathExpressionException {
-		return (NodeList) newXPath(doc).evaluate(expression, doc, XPathConstants.NODESET);
+		return (NodeList) compileXPath(doc, expression).evaluate(doc, XPathConstants.NODESET);
 	}
 
+	/**
+	 * evaluates expression with cached compiled one if xpath is created by
+	 * {@link #newXPath(Document)}. relative child paths like "c:v" or
+	 * "DEF:is/DEF:t" are evaluated by walking child elements, because jaxp
+	 * builds a DTM view of the document for each evaluation, which costs
+	 * much more than compiling.
+	 */
 	public static NodeList evaluateXPath(XPath xpath, String expression, Node node) throws XPathExpressionException {
+		NamespaceContext ctx = xpath.getNamespaceContext();
+		if (ctx instanceof DocumentNamespaceContext && xpath.getXPathVariableResolver() == null
+				&& xpath.getXPathFunctionResolver() == null) {
+			if (CHILD_PATH_PATTERN.matcher(expression).matches()) {
+				NodeList result = selectChildPath(ctx, expression, node);
+				if (result != null)
+					return result;
+			}
+
+			Document doc = ((DocumentNamespaceContext) ctx).doc;
+			return (NodeList) compileXPath(doc, expression).evaluate(node, XPathConstants.NODESET);
+		}
 		return (NodeList) xpath.evaluate(expression, node, XPathConstants.NODESET);
 	}
 
+	private static final Pattern CHILD_PATH_PATTERN = Pattern
+			.compile("[A-Za-z_][\\w.-]*:[A-Za-z_][\\w.-]*(/[A-Za-z_][\\w.-]*:[A-Za-z_][\\w.-]*)*");
+
+	/**
+	 * node list of collected nodes, which does not change with the document.
+	 */
+	public static class ArrayNodeList extends ArrayList<Node> implements NodeList {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Node item(int index) {
+			return index < size() ? get(index) : null;
+		}
+
+		@Override
+		public int getLength() {
+			return size();
+		}
+	}
+
+	// returns null if a prefix cannot be resolved, to let xpath report it
+	private static NodeList selectChildPath(NamespaceContext ctx, String expression, Node node) {
+		String[] steps = expression.split("/");
+		ArrayNodeList current = new ArrayNodeList();
+		current.add(node);
+		for (String step : steps) {
+			int colon = step.indexOf(':');
+			String uri = ctx.getNamespaceURI(step.substring(0, colon));
+			if (uri == null)
+				return null;
+			String localName = step.substring(colon + 1);
+
+			ArrayNodeList next = new ArrayNodeList();
+			for (Node parent : current) {
+				for (Node c = parent.getFirstChild(); c != null; c = c.getNextSibling()) {
+					if (c.getNodeType() == Node.ELEMENT_NODE && localName.equals(c.getLocalName())
+							&& uri.equals(c.getNamespaceURI()))
+						next.add(c);
+				}
+			}
+			current = next;
+		}
+		return current;
+	}
+
 	public static NodeList evaluateXPathExpr(XPathExpression xpath, Node node) throws XPathExpressionException {
 		return (NodeList) xpath.evaluate(node, XPathConstants.NODESET);
 	}
@@ -178,25 +528,84 @@ public class XMLDocHelper {
 
 	public static void save(Document doc, File file, boolean indent) throws XPathExpressionException, DOMException,
 			TransformerFactoryConfigurationError, TransformerException {
-		doc.normalize();
+		save(doc, new StreamResult(file), indent);
+	}
 
-		XPath xpath = newXPath(doc);
+	public static void save(Document doc, OutputStream os, boolean indent) throws XPathExpressionException,
+			DOMException, TransformerFactoryConfigurationError, TransformerException {
+		save(doc, new StreamResult(os), indent);
+	}
 
-		for (Node n : new NodeListIterAdapter(evaluateXPath(xpath, "//text()[normalize-space(.)='']", doc))) {
-			n.getParentNode().removeChild(n);
+	public static void save(Document doc, Writer writer, boolean indent) throws XPathExpressionException,
+			DOMException, TransformerFactoryConfigurationError, TransformerException {
+		save(doc, new StreamResult(writer), indent);
+	}
+
+	public static void save(Document doc, OOXMLPackage pkg, String path, boolean indent) throws IOException,
+			XPathExpressionException, DOMException, TransformerFactoryConfigurationError, TransformerException {
+		OutputStream os = pkg.getOutputStream(path);
+		boolean completed = false;
+		try {
+			save(doc, os, indent);
+			completed = true;
+		} finally {
+			if (completed)
+				os.close();
+			else
+				PartStore.abort(os);
+		}
+	}
+
+	/**
+	 * removes text and cdata nodes having only whitespace, same as removing
+	 * //text()[normalize-space(.)=''] but without xpath evaluation.
+	 */
+	private static void removeWhitespaceText(Document doc) {
+		Node n = doc.getDocumentElement();
+		while (n != null) {
+			Node next;
+			if (n.getFirstChild() != null) {
+				next = n.getFirstChild();
+			} else {
+				next = n;
+				while (next != null && next.getNextSibling() == null)
+					next = next.getParentNode();
+				if (next != null)
+					next = next.getNextSibling();
+			}
+
+			short type = n.getNodeType();
+			if ((type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) && isWhitespace(n.getNodeValue()))
+				n.getParentNode().removeChild(n);
+			n = next;
 		}
+	}
+
+	private static boolean isWhitespace(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n')
+				return false;
+		}
+		return true;
+	}
+
+	private static void save(Document doc, StreamResult result, boolean indent) throws XPathExpressionException,
+			DOMException, TransformerFactoryConfigurationError, TransformerException {
+		doc.normalize();
+		removeWhitespaceText(doc);
 
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		Transformer transformer = getTransformer();
 		transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
 		transformer.setOutputProperty(OutputKeys.CDATA_SECTION_ELEMENTS, "yes");
 		transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-		transformer.transform(new DOMSource(doc), new StreamResult(file));
+		transformer.transform(new DOMSource(doc), result);
 	}
 	
 	public static Document parseXml(OOXMLPackage pkg, String path) {
 		InputStream is = null;
 		try {
-			is = new FileInputStream(new File(pkg.getDataDir(), path));
+			is = pkg.getInputStream(path);
 			Document doc = newDocumentBuilder().parse(is);
 
 			return doc;
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * minimal zip writer which can splice entries of a source archive without
+ * recompressing them. {@link java.util.zip.ZipOutputStream} accepts only
+ * uncompressed data, so it cannot be used for that.
+ *
+ * new entries are deflated while they are written and followed by a data
+ * descriptor, so their size need not be known in advance. zip64 is not
+ * supported.
+ */
+public class ZipArchiveWriter implements Closeable {
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+
+	private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+	private static final int FLAG_UTF8 = 0x0800;
+	private static final int VERSION = 20;
+	private static final long MAX_SIZE = 0xffffffffL;
+
+	private static class CentralEntry {
+		byte[] name;
+		int flags;
+		int method;
+		int dosTime;
+		long crc;
+		long compressedSize;
+		long size;
+		long offset;
+	}
+
+	private final OutputStream out;
+	private long written = 0;
+	private final List<CentralEntry> entries = new ArrayList<CentralEntry>();
+	private final Set<String> names = new HashSet<String>();
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final byte[] deflateBuf = new byte[8192];
+	private final byte[] header = new byte[46];
+
+	private CentralEntry current = null;
+	private CRC32 crc = new CRC32();
+	private EntryOutputStream entryOutputStream = new EntryOutputStream();
+	private boolean finished = false;
+
+	public ZipArchiveWriter(OutputStream os) {
+		this.out = new BufferedOutputStream(os, 8192);
+	}
+
+	/**
+	 * copies compressed bytes of source entry as is.
+	 */
+	public void writeRawEntry(RawZipEntry raw) throws IOException {
+		closeEntry();
+		CentralEntry e = newEntry(raw.getName());
+		e.flags = (raw.getFlags() & ~FLAG_DATA_DESCRIPTOR) | (e.flags & FLAG_UTF8);
+		e.method = raw.getMethod();
+		e.dosTime = raw.getDosTime();
+		e.crc = raw.getCrc();
+		e.compressedSize = raw.getCompressedSize();
+		e.size = raw.getSize();
+
+		writeLocalHeader(e);
+		writeBytes(raw.getBuffer(), raw.getDataOffset(), (int) raw.getCompressedSize());
+		entries.add(e);
+	}
+
+	/**
+	 * begins new deflated entry. returned stream accepts uncompressed data of
+	 * the entry and must not be closed; call {@link #closeEntry()} instead.
+	 */
+	public OutputStream putNextEntry(String name, long time) throws IOException {
+		closeEntry();
+		CentralEntry e = newEntry(name);
+		e.flags |= FLAG_DATA_DESCRIPTOR;
+		e.method = ZipEntry.DEFLATED;
+		e.dosTime = javaToDosTime(time);
+		e.offset = written;
+
+		writeLocalHeader(e);
+		crc.reset();
+		deflater.reset();
+		current = e;
+		return entryOutputStream;
+	}
+
+	public void closeEntry() throws IOException {
+		if (current == null)
+			return;
+
+		deflater.finish();
+		while (!deflater.finished())
+			deflate();
+
+		current.crc = crc.getValue();
+		current.size = deflater.getBytesRead();
+		current.compressedSize = deflater.getBytesWritten();
+		if (current.size > MAX_SIZE || current.compressedSize > MAX_SIZE)
+			throw new ZipException("zip64 is not supported: " + new String(current.name, "UTF-8"));
+
+		writeInt(DATA_DESCRIPTOR_SIG);
+		writeInt(current.crc);
+		writeInt(current.compressedSize);
+		writeInt(current.size);
+
+		entries.add(current);
+		current = null;
+	}
+
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		closeEntry();
+
+		long cdOffset = written;
+		for (CentralEntry e : entries) {
+			writeInt(CENTRAL_HEADER_SIG);
+			writeShort(VERSION);
+			writeShort(VERSION);
+			writeShort(e.flags);
+			writeShort(e.method);
+			writeInt(e.dosTime);
+			writeInt(e.crc);
+			writeInt(e.compressedSize);
+			writeInt(e.size);
+			writeShort(e.name.length);
+			writeShort(0); // extra
+			writeShort(0); // comment
+			writeShort(0); // disk number
+			writeShort(0); // internal attributes
+			writeInt(0); // external attributes
+			writeInt(e.offset);
+			writeBytes(e.name, 0, e.name.length);
+		}
+		long cdSize = written - cdOffset;
+
+		if (entries.size() > 0xffff || cdOffset > MAX_SIZE)
+			throw new ZipException("zip64 is not supported");
+
+		writeInt(END_OF_CENTRAL_DIR_SIG);
+		writeShort(0);
+		writeShort(0);
+		writeShort(entries.size());
+		writeShort(entries.size());
+		writeInt(cdSize);
+		writeInt(cdOffset);
+		writeShort(0);
+
+		out.flush();
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	/**
+	 * closes the stream without writing central directory, so that a failed
+	 * archive cannot be read as a complete one. exceptions are ignored.
+	 */
+	public void abort() {
+		finished = true;
+		current = null;
+		deflater.end();
+		try {
+			out.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private CentralEntry newEntry(String name) throws IOException {
+		if (!names.add(name))
+			throw new ZipException("duplicate entry: " + name);
+
+		CentralEntry e = new CentralEntry();
+		e.name = encodeName(name);
+		e.offset = written;
+		for (byte b : e.name) {
+			if (b < 0) {
+				e.flags |= FLAG_UTF8;
+				break;
+			}
+		}
+		return e;
+	}
+
+	private void writeLocalHeader(CentralEntry e) throws IOException {
+		boolean descriptor = (e.flags & FLAG_DATA_DESCRIPTOR) != 0;
+		writeInt(LOCAL_HEADER_SIG);
+		writeShort(VERSION);
+		writeShort(e.flags);
+		writeShort(e.method);
+		writeInt(e.dosTime);
+		writeInt(descriptor ? 0 : e.crc);
+		writeInt(descriptor ? 0 : e.compressedSize);
+		writeInt(descriptor ? 0 : e.size);
+		writeShort(e.name.length);
+		writeShort(0);
+		writeBytes(e.name, 0, e.name.length);
+	}
+
+	private void deflate() throws IOException {
+		int len = deflater.deflate(deflateBuf, 0, deflateBuf.length);
+		if (len > 0)
+			writeBytes(deflateBuf, 0, len);
+	}
+
+	private class EntryOutputStream extends OutputStream {
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (current == null)
+				throw new IOException("no current zip entry");
+			if (len == 0)
+				return;
+			crc.update(b, off, len);
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput())
+				deflate();
+		}
+	}
+
+	private void writeShort(int v) throws IOException {
+		header[0] = (byte) (v & 0xff);
+		header[1] = (byte) ((v >>> 8) & 0xff);
+		writeBytes(header, 0, 2);
+	}
+
+	private void writeInt(long v) throws IOException {
+		header[0] = (byte) (v & 0xff);
+		header[1] = (byte) ((v >>> 8) & 0xff);
+		header[2] = (byte) ((v >>> 16) & 0xff);
+		header[3] = (byte) ((v >>> 24) & 0xff);
+		writeBytes(header, 0, 4);
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	private static byte[] encodeName(String name) {
+		try {
+			return name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int javaToDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+				| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+}
@@ -23,11 +23,18 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import org.krakenapps.docxcod.PartStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -152,6 +159,212 @@ public class ZipHelper {
 		return -1;
 	}
 
+	public static int archive(ZipOutputStream os, Collection<String> names, PartStore store) {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (String name : names) {
+			InputStream is = null;
+			try {
+				ZipEntry zEntry = new ZipEntry(PartStore.normalizeName(name));
+				zEntry.setTime(store.lastModified(name));
+				os.putNextEntry(zEntry);
+
+				is = store.openInputStream(name);
+				int cnt = 0;
+				while ((cnt = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
+					os.write(buffer, 0, cnt);
+				}
+				os.closeEntry();
+			} catch (FileNotFoundException e) {
+				logger.warn("target part not found", e);
+				continue;
+			} catch (IOException e) {
+				logger.warn("exception while reading part", e);
+				continue;
+			} finally {
+				CloseableHelper.safeClose(is);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * writes given parts. parts having an entry in sourceEntries are copied
+	 * without recompression. if verify is set, the entry is copied only when
+	 * size and crc of the part are same as the entry.
+	 */
+	public static int archive(ZipArchiveWriter zip, Collection<String> names, PartStore store,
+			Map<String, RawZipEntry> sourceEntries, boolean verify) throws IOException {
+		return archive(zip, names, store, sourceEntries, verify, Collections.<String, Long> emptyMap());
+	}
+
+	/**
+	 * same as above, but parts written anew take time from entryTimes if it
+	 * has one, instead of modification time in the store.
+	 */
+	public static int archive(ZipArchiveWriter zip, Collection<String> names, PartStore store,
+			Map<String, RawZipEntry> sourceEntries, boolean verify, Map<String, Long> entryTimes) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int rawCount = 0;
+		for (String name : names) {
+			String entryName = PartStore.normalizeName(name);
+			if (!store.exists(name)) {
+				logger.warn("target part not found: " + name);
+				continue;
+			}
+
+			RawZipEntry raw = sourceEntries.get(entryName);
+			if (raw != null && (!verify || isUnmodified(store, name, raw, buffer))) {
+				zip.writeRawEntry(raw);
+				rawCount++;
+				continue;
+			}
+
+			InputStream is = null;
+			try {
+				is = store.openInputStream(name);
+				Long time = entryTimes.get(entryName);
+				OutputStream os = zip.putNextEntry(entryName, time != null ? time : store.lastModified(name));
+				int cnt = 0;
+				while ((cnt = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
+					os.write(buffer, 0, cnt);
+				}
+				zip.closeEntry();
+			} finally {
+				CloseableHelper.safeClose(is);
+			}
+		}
+		logger.debug("archived {} parts, {} copied without recompression", names.size(), rawCount);
+		return rawCount;
+	}
+
+	private static boolean isUnmodified(PartStore store, String name, RawZipEntry raw, byte[] buffer)
+			throws IOException {
+		if (store.length(name) != raw.getSize())
+			return false;
+
+		InputStream is = store.openInputStream(name);
+		try {
+			CRC32 crc = new CRC32();
+			int cnt = 0;
+			while ((cnt = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
+				crc.update(buffer, 0, cnt);
+			}
+			return crc.getValue() == raw.getCrc();
+		} finally {
+			CloseableHelper.safeClose(is);
+		}
+	}
+
+	/**
+	 * reads central directory of zip archive in given buffer. returned entries
+	 * refer to the buffer. returns empty map if the archive cannot be read this
+	 * way (ex: zip64, spanned or encrypted archive), in which case every part
+	 * will be recompressed.
+	 */
+	public static Map<String, RawZipEntry> readRawEntries(byte[] zip) {
+		Map<String, RawZipEntry> entries = new LinkedHashMap<String, RawZipEntry>();
+		try {
+			int eocd = -1;
+			int minPos = Math.max(0, zip.length - 22 - 0xffff);
+			for (int i = zip.length - 22; i >= minPos; i--) {
+				if (readInt(zip, i) == 0x06054b50L) {
+					eocd = i;
+					break;
+				}
+			}
+			if (eocd < 0)
+				return Collections.emptyMap();
+
+			int count = readShort(zip, eocd + 10);
+			long cdOffset = readInt(zip, eocd + 16);
+			if (readShort(zip, eocd + 4) != 0 || cdOffset >= 0xffffffffL || count == 0xffff)
+				return Collections.emptyMap();
+
+			int pos = (int) cdOffset;
+			for (int i = 0; i < count; i++) {
+				if (readInt(zip, pos) != 0x02014b50L)
+					return Collections.emptyMap();
+
+				int flags = readShort(zip, pos + 8);
+				int method = readShort(zip, pos + 10);
+				int dosTime = (int) readInt(zip, pos + 12);
+				long crc = readInt(zip, pos + 16);
+				long csize = readInt(zip, pos + 20);
+				long size = readInt(zip, pos + 24);
+				int nameLen = readShort(zip, pos + 28);
+				int extraLen = readShort(zip, pos + 30);
+				int commentLen = readShort(zip, pos + 32);
+				long localOffset = readInt(zip, pos + 42);
+				String name = new String(zip, pos + 46, nameLen, (flags & 0x800) != 0 ? "UTF-8" : "Cp437");
+				pos += 46 + nameLen + extraLen + commentLen;
+
+				if ((flags & 0x1) != 0 || csize == 0xffffffffL || size == 0xffffffffL || localOffset == 0xffffffffL)
+					return Collections.emptyMap();
+				if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+					continue;
+				if (name.endsWith("/"))
+					continue;
+
+				int lh = (int) localOffset;
+				if (readInt(zip, lh) != 0x04034b50L)
+					return Collections.emptyMap();
+				int dataOffset = lh + 30 + readShort(zip, lh + 26) + readShort(zip, lh + 28);
+				if (dataOffset + csize > zip.length)
+					return Collections.emptyMap();
+
+				entries.put(name, new RawZipEntry(name, flags, method, dosTime, crc, csize, size, zip, dataOffset));
+			}
+			return entries;
+		} catch (IndexOutOfBoundsException e) {
+			logger.warn("cannot read zip central directory", e);
+			return Collections.emptyMap();
+		} catch (IOException e) {
+			logger.warn("cannot read zip central directory", e);
+			return Collections.emptyMap();
+		}
+	}
+
+	private static int readShort(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+	}
+
+	private static long readInt(byte[] b, int off) {
+		return ((long) readShort(b, off + 2) << 16) | readShort(b, off);
+	}
+
+	public static int extract(InputStream is, PartStore store) throws IOException {
+		ZipInputStream zipIs = new ZipInputStream(is);
+		try {
+			int extractedCount = 0;
+			byte[] buf = new byte[BUFFER_SIZE];
+			ZipEntry nextEntry = null;
+			while ((nextEntry = zipIs.getNextEntry()) != null) {
+				if (nextEntry.isDirectory())
+					continue;
+
+				// part is stored only if whole entry is inflated
+				OutputStream os = store.openOutputStream(nextEntry.getName());
+				boolean completed = false;
+				try {
+					int readCnt = 0;
+					while ((readCnt = zipIs.read(buf)) != -1) {
+						os.write(buf, 0, readCnt);
+					}
+					os.close();
+					completed = true;
+				} finally {
+					if (!completed)
+						PartStore.abort(os);
+				}
+				zipIs.closeEntry();
+				extractedCount++;
+			}
+			return extractedCount;
+		} finally {
+			CloseableHelper.safeClose(zipIs);
+		}
+	}
+
 	public static void getFilesRecursivelyIn(File entry, List<File> files) {
 		getFilesRecursivelyIn(entry, files, null);
 	}
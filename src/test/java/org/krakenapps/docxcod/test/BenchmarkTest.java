@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Future Systems
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.krakenapps.docxcod.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.krakenapps.docxcod.AugmentedDirectiveProcessor;
+import org.krakenapps.docxcod.ChartDirectiveParser;
+import org.krakenapps.docxcod.MagicNodeUnwrapper;
+import org.krakenapps.docxcod.MergeFieldParser;
+import org.krakenapps.docxcod.OOXMLPackage;
+import org.krakenapps.docxcod.OOXMLPackage.TidyMode;
+import org.krakenapps.docxcod.TemplateCompiler;
+import org.krakenapps.docxcod.util.XMLDocHelper;
+import org.krakenapps.docxcod.util.XMLDocHelper.NodeListIterAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * rough timings of hot paths. numbers are logged, not asserted. ignored in
+ * normal test runs; remove the annotation to run it.
+ */
+@Ignore("benchmark")
+public class BenchmarkTest {
+	private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+	private static final String[] DOCUMENTS = { "/chartTest.docx", "/totalTest.docx", "/nestedList2.docx",
+			"/fieldTest.docx" };
+
+	private static final int WARMUP = 5;
+	private static final int ITERATIONS = 20;
+
+	@Test
+	public void loadTidyModeBenchmark() throws IOException {
+		for (String name : DOCUMENTS) {
+			byte[] docx = IOUtils.toByteArray(getClass().getResourceAsStream(name));
+			StringBuilder sb = new StringBuilder(name);
+			for (TidyMode mode : TidyMode.values()) {
+				for (int i = 0; i < WARMUP; i++)
+					load(docx, mode);
+
+				long begin = System.nanoTime();
+				for (int i = 0; i < ITERATIONS; i++)
+					load(docx, mode);
+				long elapsed = System.nanoTime() - begin;
+
+				sb.append(String.format(" %s: %.2fms", mode, elapsed / 1000000.0 / ITERATIONS));
+			}
+			logger.info("load " + sb.toString());
+		}
+	}
+
+	@Test
+	public void xpathCacheBenchmark() throws Exception {
+		byte[] docx = IOUtils.toByteArray(getClass().getResourceAsStream("/chartTest.docx"));
+		OOXMLPackage pkg = load(docx, TidyMode.NONE);
+		Document doc = XMLDocHelper.parseXml(pkg, "word/charts/chart1.xml");
+		XPath xpath = XMLDocHelper.newXPath(doc);
+		NodeList pts = XMLDocHelper.evaluateXPath(xpath, "//c:pt", doc);
+		assertTrue(pts.getLength() > 0);
+
+		int evaluations = 0;
+		long uncached = 0;
+		long cached = 0;
+		long helper = 0;
+		for (int round = 0; round < WARMUP + ITERATIONS; round++) {
+			long t0 = System.nanoTime();
+			for (int i = 0; i < 100; i++) {
+				for (Node n : new NodeListIterAdapter(pts))
+					xpath.evaluate("c:v", n, XPathConstants.NODESET);
+			}
+			long t1 = System.nanoTime();
+			for (int i = 0; i < 100; i++) {
+				for (Node n : new NodeListIterAdapter(pts))
+					XMLDocHelper.compileXPath(doc, "c:v").evaluate(n, XPathConstants.NODESET);
+			}
+			long t2 = System.nanoTime();
+			for (int i = 0; i < 100; i++) {
+				for (Node n : new NodeListIterAdapter(pts))
+					assertTrue(XMLDocHelper.evaluateXPath(xpath, "c:v", n).getLength() == 1);
+			}
+			long t3 = System.nanoTime();
+
+			if (round >= WARMUP) {
+				uncached += t1 - t0;
+				cached += t2 - t1;
+				helper += t3 - t2;
+				evaluations += 100 * pts.getLength();
+			}
+		}
+
+		logger.info(String.format("xpath c:v per evaluation: compiled each time %dns, cached compiled %dns, "
+				+ "evaluateXPath %dns", uncached / evaluations, cached / evaluations, helper / evaluations));
+	}
+
+	@Test
+	public void magicNodeUnwrapBenchmark() throws IOException {
+		byte[] docx = IOUtils.toByteArray(getClass().getResourceAsStream("/totalTest.docx"));
+		OOXMLPackage pkg = load(docx, TidyMode.LAZY);
+		pkg.apply(new MergeFieldParser(), new HashMap<String, Object>());
+		pkg.apply(new AugmentedDirectiveProcessor(), new HashMap<String, Object>());
+		String part = IOUtils.toString(pkg.getInputStream("word/document.xml"), "UTF-8");
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20; i++)
+			sb.append(part);
+		String xml = sb.toString();
+
+		long regex = 0;
+		long streaming = 0;
+		for (int round = 0; round < WARMUP + ITERATIONS; round++) {
+			long t0 = System.nanoTime();
+			String expected = DocxTest.unwrapWithRegex(xml);
+			long t1 = System.nanoTime();
+			StringWriter writer = new StringWriter(xml.length());
+			MagicNodeUnwrapper.unwrap(new StringReader(xml), writer);
+			long t2 = System.nanoTime();
+			assertTrue(expected.equals(writer.toString()));
+
+			if (round >= WARMUP) {
+				regex += t1 - t0;
+				streaming += t2 - t1;
+			}
+		}
+
+		double mb = xml.length() * (double) ITERATIONS / 1024 / 1024;
+		logger.info(String.format("unwrap %d chars: regex %.1fMB/s, streaming %.1fMB/s", xml.length(), mb
+				/ (regex / 1e9), mb / (streaming / 1e9)));
+	}
+
+	@Test
+	public void templateCompileBenchmark() throws IOException {
+		for (String name : DOCUMENTS) {
+			byte[] docx = IOUtils.toByteArray(getClass().getResourceAsStream(name));
+			long separate = 0;
+			long fused = 0;
+			for (int round = 0; round < WARMUP + ITERATIONS; round++) {
+				OOXMLPackage a = load(docx, TidyMode.LAZY);
+				OOXMLPackage b = load(docx, TidyMode.LAZY);
+
+				long t0 = System.nanoTime();
+				a.apply(new MergeFieldParser(), null);
+				a.apply(new AugmentedDirectiveProcessor(), null);
+				a.apply(new ChartDirectiveParser(), null);
+				a.apply(new MagicNodeUnwrapper("word/document.xml"), null);
+				long t1 = System.nanoTime();
+				b.apply(new TemplateCompiler(), null);
+				long t2 = System.nanoTime();
+
+				if (round >= WARMUP) {
+					separate += t1 - t0;
+					fused += t2 - t1;
+				}
+			}
+			logger.info(String.format("compile %s: processors %.2fms, TemplateCompiler %.2fms", name, separate
+					/ 1000000.0 / ITERATIONS, fused / 1000000.0 / ITERATIONS));
+		}
+	}
+
+	private OOXMLPackage load(byte[] docx, TidyMode mode) throws IOException {
+		OOXMLPackage pkg = new OOXMLPackage();
+		pkg.setTidyMode(mode);
+		pkg.loadInMemory(new ByteArrayInputStream(docx));
+		return pkg;
+	}
+}
@@ -15,16 +15,47 @@
  */
 package org.krakenapps.docxcod.test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.xpath.XPath;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -33,19 +64,45 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.krakenapps.docxcod.AugmentedDirectiveProcessor;
+import org.krakenapps.docxcod.BatchRenderer;
+import org.krakenapps.docxcod.BatchReport;
+import org.krakenapps.docxcod.CellGrid;
+import org.krakenapps.docxcod.ChartData;
 import org.krakenapps.docxcod.ChartDirectiveParser;
+import org.krakenapps.docxcod.ChartSheetTemplate;
 import org.krakenapps.docxcod.Directive;
 import org.krakenapps.docxcod.DirectiveExtractor;
+import org.krakenapps.docxcod.DirectoryOutputSink;
+import org.krakenapps.docxcod.DocxTemplate;
+import org.krakenapps.docxcod.EmbeddedChartCache;
+import org.krakenapps.docxcod.EmbeddedChartPreprocessor;
 import org.krakenapps.docxcod.FreeMarkerRunner;
 import org.krakenapps.docxcod.JsonHelper;
 import org.krakenapps.docxcod.MagicNodeUnwrapper;
+import org.krakenapps.docxcod.MemoryPartStore;
 import org.krakenapps.docxcod.MergeFieldParser;
 import org.krakenapps.docxcod.OOXMLPackage;
+import org.krakenapps.docxcod.OOXMLPackage.TidyMode;
 import org.krakenapps.docxcod.OOXMLProcessor;
+import org.krakenapps.docxcod.StreamingMergeFieldParser;
+import org.krakenapps.docxcod.RenderContext;
+import org.krakenapps.docxcod.SharedStringTable;
+import org.krakenapps.docxcod.SheetReader;
+import org.krakenapps.docxcod.TemplateCompiler;
+import org.krakenapps.docxcod.Utils;
+import org.krakenapps.docxcod.PartWriter;
+import org.krakenapps.docxcod.ZipOutputSink;
+import org.krakenapps.docxcod.util.RawZipEntry;
+import org.krakenapps.docxcod.util.XMLDocHelper;
 import org.krakenapps.docxcod.util.ZipHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import freemarker.template.Configuration;
 
 public class DocxTest {
 	private Logger logger = LoggerFactory.getLogger(getClass().getName());
@@ -152,6 +209,962 @@ public class DocxTest {
 		// tearDownHelper.add(saveFile);
 	}
 
+	@Test
+	public void concurrentChartTest() throws Exception {
+		InputStreamReader inputReader = new InputStreamReader(getClass().getResourceAsStream("/nestedListTest.in"));
+		JSONTokener tokener = new JSONTokener(inputReader);
+		final Map<String, Object> model = JsonHelper.parse((JSONObject) tokener.nextValue());
+
+		// embedded workbooks are processed in memory, so renders extracted to
+		// their own directories share nothing
+		File baseDir = new File(".test/_concurrentChartTest");
+		tearDownHelper.add(baseDir);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 16; i++) {
+				final File targetDir = new File(baseDir, Integer.toString(i));
+				results.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						targetDir.mkdirs();
+						OOXMLPackage docx = new OOXMLPackage();
+						docx.load(getClass().getResourceAsStream("/chartTest.docx"), targetDir);
+
+						List<OOXMLProcessor> processors = new ArrayList<OOXMLProcessor>();
+						processors.add(new MergeFieldParser());
+						processors.add(new AugmentedDirectiveProcessor());
+						processors.add(new ChartDirectiveParser());
+						processors.add(new MagicNodeUnwrapper("word/document.xml"));
+						processors.add(new FreeMarkerRunner("word/document.xml"));
+						docx.apply(processors, new RenderContext(model));
+
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						docx.writeTo(out);
+						return out.toByteArray();
+					}
+				}));
+			}
+
+			Map<String, byte[]> first = null;
+			for (Future<byte[]> f : results) {
+				OOXMLPackage pkg = new OOXMLPackage();
+				pkg.loadInMemory(new ByteArrayInputStream(f.get()));
+				Map<String, byte[]> parts = new HashMap<String, byte[]>();
+				for (String part : pkg.getPartStore().listNames())
+					parts.put(part, IOUtils.toByteArray(pkg.getInputStream(part)));
+
+				if (first == null)
+					first = parts;
+				assertEquals(first.keySet(), parts.keySet());
+				for (String part : parts.keySet())
+					assertArrayEquals(part, first.get(part), parts.get(part));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void embeddedChartCacheTest() throws Exception {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		String xlsxPart = "word/embeddings/Microsoft_Excel_____1.xlsx";
+
+		EmbeddedChartCache cache = new EmbeddedChartCache();
+		EmbeddedChartCache.Workbook wb = cache.get(docx, xlsxPart);
+		assertSame(wb, cache.get(docx, "word\\embeddings\\Microsoft_Excel_____1.xlsx"));
+		assertEquals(1, cache.size());
+
+		// chart instances write copies
+		String sheet = IOUtils.toString(wb.xlsx.getInputStream(EmbeddedChartCache.SHEET1_XML), "UTF-8");
+		OOXMLPackage copy = wb.xlsx.copy();
+		copy.getOutputStream(EmbeddedChartCache.SHEET1_XML).close();
+		assertEquals(sheet, IOUtils.toString(wb.xlsx.getInputStream(EmbeddedChartCache.SHEET1_XML), "UTF-8"));
+
+		// chart data is formatted with configuration of the template
+		Configuration cfg = FreeMarkerRunner.createConfiguration();
+		cfg.setNumberFormat("0.00");
+		wb = new EmbeddedChartCache(cfg).get(docx, xlsxPart);
+		assertEquals("10.00", wb.sheet.evaluate(diskUsageModel("C:\\", 10)).getCell("B", 2));
+		wb = cache.get(docx, xlsxPart);
+		assertEquals("10", wb.sheet.evaluate(diskUsageModel("C:\\", 10)).getCell("B", 2));
+	}
+
+	// model of the charts in chartTest.docx, which list u["disk-usage"]
+	private Map<String, Object> diskUsageModel(Object... nameAndUsage) {
+		List<Object> disks = new ArrayList<Object>();
+		for (int i = 0; i < nameAndUsage.length; i += 2) {
+			Map<String, Object> disk = new HashMap<String, Object>();
+			disk.put("disk-name", nameAndUsage[i]);
+			disk.put("usage", nameAndUsage[i + 1]);
+			disks.add(disk);
+		}
+
+		Map<String, Object> u = new HashMap<String, Object>();
+		u.put("disk-usage", disks);
+		Map<String, Object> model = new HashMap<String, Object>();
+		model.put("u", u);
+		return model;
+	}
+
+	@Test
+	public void chartDataTest() throws Exception {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		EmbeddedChartCache.Workbook wb = new EmbeddedChartCache().get(docx,
+				"word/embeddings/Microsoft_Excel_____1.xlsx");
+
+		// no item, header only
+		ChartData data = wb.sheet.evaluate(diskUsageModel());
+		assertEquals(0, data.getRowCount());
+		assertTrue(data.getCell("A", 1) != null);
+		assertEquals(0, data.getRange("B", 2, 4).size());
+
+		int rows = 10;
+		Object[] disks = new Object[rows * 2];
+		for (int i = 0; i < rows; i++) {
+			disks[i * 2] = "C:\\<" + i + ">";
+			disks[i * 2 + 1] = i * 10;
+		}
+		data = wb.sheet.evaluate(diskUsageModel(disks));
+		assertEquals(rows, data.getRowCount());
+		assertEquals("C:\\<0>", data.getCell("A", 2));
+		assertEquals("90", data.getCell("B", 11));
+		assertNull(data.getCell("A", 12));
+
+		// ranges are extended to data rows in numeric order
+		List<String> range = data.getRange("A", 2, 3);
+		assertEquals(rows, range.size());
+		assertEquals("C:\\<9>", range.get(9));
+		assertEquals(1, data.getRange("A", 1, 1).size());
+		assertEquals("A1:B" + (rows + 1), data.getTableRange());
+
+		// written sheet holds the same cells
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		wb.sheet.write(data, os);
+		Document doc = XMLDocHelper.newDocumentBuilder().parse(new ByteArrayInputStream(os.toByteArray()));
+		XPath xpath = XMLDocHelper.newXPath(doc);
+		NodeList cells = XMLDocHelper.evaluateXPath(xpath, "//*[local-name()='c'][@r='A11']", doc);
+		assertEquals(1, cells.getLength());
+		assertEquals("C:\\<9>", cells.item(0).getTextContent());
+		cells = XMLDocHelper.evaluateXPath(xpath, "//*[local-name()='c'][@r='B3']", doc);
+		assertEquals("10", cells.item(0).getTextContent());
+	}
+
+	@Test
+	public void sharedStringTableTest() throws Exception {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		String xlsxPart = "word/embeddings/Microsoft_Excel_____1.xlsx";
+		OOXMLPackage original = new OOXMLPackage();
+		original.loadInMemory(docx.getInputStream(xlsxPart));
+		List<String> originalStrings = SheetReader.readSharedStrings(original);
+
+		// one host with 30 disks named after 3 labels, one of them in the
+		// original workbook
+		Object[] disks = new Object[60];
+		for (int i = 0; i < 30; i++) {
+			disks[i * 2] = i % 3 == 0 ? "C:\\" : "host" + (i % 3);
+			disks[i * 2 + 1] = i;
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, Object> u = (Map<String, Object>) diskUsageModel(disks).get("u");
+		u.put("host", "host");
+		Map<String, Object> model = new HashMap<String, Object>();
+		model.put("disk-usage-summary", Arrays.asList(u));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DocxTemplate.compile(getClass().getResourceAsStream("/chartTest.docx")).render(model, out);
+		OOXMLPackage rendered = new OOXMLPackage();
+		rendered.loadInMemory(new ByteArrayInputStream(out.toByteArray()));
+		OOXMLPackage xlsx = new OOXMLPackage();
+		xlsx.loadInMemory(rendered.getInputStream("word/embeddings/Microsoft_Excel_____1_0.xlsx"));
+
+		// repeated labels are added once, original strings keep indexes
+		List<String> strings = SheetReader.readSharedStrings(xlsx);
+		assertEquals(originalStrings.size() + 2, strings.size());
+		assertEquals(originalStrings, strings.subList(0, originalStrings.size()));
+		assertEquals(strings.size(), new HashSet<String>(strings).size());
+		Document sst = XMLDocHelper.parseXml(xlsx, SheetReader.SHARED_STRINGS_XML);
+		assertEquals(Integer.toString(strings.size()), sst.getDocumentElement().getAttribute("uniqueCount"));
+
+		Map<String, Element> cells = new HashMap<String, Element>();
+		Document sheet = XMLDocHelper.parseXml(xlsx, EmbeddedChartCache.SHEET1_XML);
+		NodeList nodes = sheet.getElementsByTagNameNS("*", "c");
+		for (int i = 0; i < nodes.getLength(); i++)
+			cells.put(((Element) nodes.item(i)).getAttribute("r"), (Element) nodes.item(i));
+
+		for (int i = 0; i < 30; i++) {
+			Element c = cells.get("A" + (i + 2));
+			assertEquals("s", c.getAttribute("t"));
+			assertEquals(Integer.toString(strings.indexOf(i % 3 == 0 ? "C:\\" : "host" + (i % 3))), c
+					.getTextContent().trim());
+		}
+		assertEquals(Integer.toString(originalStrings.indexOf("C:\\")), cells.get("A2").getTextContent().trim());
+		assertEquals(Integer.toString(originalStrings.size()), cells.get("A3").getTextContent().trim());
+		assertEquals(Integer.toString(originalStrings.size() + 1), cells.get("A4").getTextContent().trim());
+		assertEquals("29", cells.get("B31").getTextContent().trim());
+		assertNull(cells.get("A32"));
+	}
+
+	@Test
+	public void sharedStringMarkupTest() throws Exception {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		OOXMLPackage xlsx = new OOXMLPackage();
+		xlsx.loadInMemory(docx.getInputStream("word/embeddings/Microsoft_Excel_____1.xlsx"));
+
+		String ns = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+		writePart(xlsx, SheetReader.SHARED_STRINGS_XML, "<sst xmlns=\"" + ns + "\" count=\"5\" uniqueCount=\"2\">"
+				+ "<si><r><rPr><b/></rPr><t>bold</t></r><r><t xml:space=\"preserve\"> label</t></r></si>"
+				+ "<si><t>\u6771\u4eac</t><rPh sb=\"0\" eb=\"2\"><t>\u30c8\u30a6\u30ad\u30e7\u30a6</t></rPh>"
+				+ "<phoneticPr fontId=\"1\"/></si><extLst><ext uri=\"{0}\"/></extLst></sst>");
+
+		// original si markup is written as is, new strings go before extLst
+		List<String> strings = SheetReader.readSharedStrings(xlsx);
+		assertEquals(Arrays.asList("bold label", "\u6771\u4eac"), strings);
+		SharedStringTable sst = new SharedStringTable(SharedStringTable.Original.read(xlsx, strings));
+		assertEquals(1, sst.add("\u6771\u4eac"));
+		assertEquals(2, sst.add(" new"));
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		sst.write(os);
+		String xml = os.toString("UTF-8");
+		assertTrue(xml.contains("<r><rPr><b/></rPr><t>bold</t></r>"));
+		assertTrue(xml.contains("<t>\u30c8\u30a6\u30ad\u30e7\u30a6</t></rPh><phoneticPr"));
+		assertTrue(xml.contains("<phoneticPr fontId=\"1\"/>"));
+		assertTrue(xml.contains("<si><t xml:space=\"preserve\"> new</t></si><extLst>"));
+		assertTrue(xml.contains("uniqueCount=\"3\""));
+		assertTrue(!xml.contains("count=\"5\""));
+		assertEquals(Arrays.asList("bold label", "\u6771\u4eac", " new"), SheetReader
+				.readSharedStrings(new ByteArrayInputStream(os.toByteArray())));
+
+		// prefixed markup gets prefixed new strings
+		writePart(xlsx, SheetReader.SHARED_STRINGS_XML, "<x:sst xmlns:x=\"" + ns
+				+ "\"><x:si><x:t>a</x:t></x:si></x:sst>");
+		sst = new SharedStringTable(SharedStringTable.Original.read(xlsx, SheetReader.readSharedStrings(xlsx)));
+		sst.add("b");
+		os = new ByteArrayOutputStream();
+		sst.write(os);
+		assertTrue(os.toString("UTF-8").contains("<x:si><x:t>a</x:t></x:si><x:si><x:t>b</x:t></x:si></x:sst>"));
+		assertEquals(Arrays.asList("a", "b"), SheetReader.readSharedStrings(new ByteArrayInputStream(os
+				.toByteArray())));
+	}
+
+	private void writePart(OOXMLPackage pkg, String part, String xml) throws IOException {
+		OutputStream os = pkg.getOutputStream(part);
+		os.write(xml.getBytes("UTF-8"));
+		os.close();
+	}
+
+	@Test
+	public void cellGridTest() throws Exception {
+		assertEquals("A", CellGrid.columnName(0));
+		assertEquals("Z", CellGrid.columnName(25));
+		assertEquals("AA", CellGrid.columnName(26));
+		assertEquals("ZZ", CellGrid.columnName(701));
+		assertEquals("AAA", CellGrid.columnName(702));
+		assertEquals("XFD", CellGrid.columnName(CellGrid.MAX_COLUMNS - 1));
+		for (int col = 0; col < CellGrid.MAX_COLUMNS; col++)
+			assertEquals(col, CellGrid.columnIndex(CellGrid.columnName(col)));
+		assertSame(CellGrid.columnName(40), CellGrid.columnName(40));
+
+		StringBuilder sb = new StringBuilder();
+		CellGrid.appendAddress(sb, 9, 40);
+		assertEquals("AO10", sb.toString());
+		assertEquals("AB3", new EmbeddedChartPreprocessor.EmbChartCellRefFunc().exec(Arrays.asList("3", "28")));
+
+		long coord = CellGrid.parseAddress("AB12");
+		assertEquals(11, CellGrid.row(coord));
+		assertEquals(27, CellGrid.column(coord));
+		assertEquals(-1, CellGrid.parseAddress("12"));
+		assertEquals(-1, CellGrid.parseAddress("A"));
+		assertEquals(-1, CellGrid.parseAddress("A0"));
+
+		CellGrid grid = new CellGrid();
+		for (int row = 0; row < 12; row++)
+			for (int col = 0; col < 30; col++)
+				grid.put(row, col, CellGrid.address(row, col));
+		grid.put(CellGrid.parseAddress("AD12"), "");
+
+		// rows are in numeric order
+		List<String> range = grid.getRange(0, 1, 11);
+		assertEquals(11, range.size());
+		assertEquals("A10", range.get(8));
+		assertEquals("A12", range.get(10));
+		assertEquals(0, grid.getRange(40, 0, 11).size());
+		assertNull(grid.get(12, 0));
+		assertEquals("A1:AC12", grid.getTableRange());
+
+		// row template spans the dimension of the sheet past column Z
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		OOXMLPackage xlsx = new OOXMLPackage();
+		xlsx.loadInMemory(docx.getInputStream("word/embeddings/Microsoft_Excel_____1.xlsx"));
+		Document sheet1 = XMLDocHelper.parseXml(xlsx, EmbeddedChartCache.SHEET1_XML);
+		((Element) sheet1.getElementsByTagNameNS("*", "dimension").item(0)).setAttribute("ref", "A1:AN18");
+		List<String> sharedStrings = SheetReader.readSharedStrings(xlsx);
+		ChartSheetTemplate wide = ChartSheetTemplate.prepare(sheet1, sharedStrings,
+				FreeMarkerRunner.getDefaultConfiguration(), "wide");
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		wide.write(wide.evaluate(diskUsageModel("C:\\", 10)), new SharedStringTable(sharedStrings), os);
+
+		Document written = XMLDocHelper.newDocumentBuilder().parse(new ByteArrayInputStream(os.toByteArray()));
+		Element row = (Element) written.getElementsByTagNameNS("*", "row").item(1);
+		assertEquals("2", row.getAttribute("r"));
+		assertEquals("1:40", row.getAttribute("spans"));
+		NodeList cells = row.getElementsByTagNameNS("*", "c");
+		assertEquals(40, cells.getLength());
+		assertEquals("AN2", ((Element) cells.item(39)).getAttribute("r"));
+	}
+
+	@Test
+	public void sheetReaderTest() throws Exception {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		OOXMLPackage xlsx = new OOXMLPackage();
+		xlsx.loadInMemory(docx.getInputStream("word/embeddings/Microsoft_Excel_____1.xlsx"));
+
+		// same as dom reader for plain texts
+		List<String> sst = SheetReader.readSharedStrings(xlsx);
+		assertEquals(Utils.readSharedStrings(XMLDocHelper.parseXml(xlsx, SheetReader.SHARED_STRINGS_XML)), sst);
+
+		String ns = "xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\"";
+		sst = SheetReader.readSharedStrings(new ByteArrayInputStream(("<sst " + ns + "><si><t>host</t></si>"
+				+ "<si><r><t>rich</t></r><r><t> text</t></r><rPh><t>x</t></rPh></si><si><t>host</t></si></sst>")
+				.getBytes("UTF-8")));
+		assertEquals(Arrays.asList("host", "rich text", "host"), sst);
+		assertSame(sst.get(0), sst.get(2));
+
+		String sheet = "<worksheet " + ns + "><sheetData><row r=\"1\"><c r=\"A1\" t=\"s\"><v>1</v></c>"
+				+ "<c r=\"B1\" t=\"inlineStr\"><is><t>a&amp;b</t></is></c><c r=\"AA1\"><v>10</v></c><c><v>10</v></c>"
+				+ "</row><row r=\"3\"><c r=\"A3\" t=\"s\"><v>9</v></c><c r=\"B3\"/></row></sheetData></worksheet>";
+		final List<String> cells = new ArrayList<String>();
+		final List<String> texts = new ArrayList<String>();
+		SheetReader.readCells(new ByteArrayInputStream(sheet.getBytes("UTF-8")), sst, new SheetReader.CellHandler() {
+			@Override
+			public void onCell(int row, int col, String text) {
+				cells.add(CellGrid.address(row, col) + "=" + text);
+				texts.add(text);
+			}
+		});
+		assertEquals(Arrays.asList("A1=rich text", "B1=a&b", "AA1=10", "AB1=10", "A3=", "B3="), cells);
+		assertSame(texts.get(2), texts.get(3));
+	}
+
+	@Test
+	public void relationshipRegistryTest() throws Exception {
+		String rels = "word/_rels/document.xml.rels";
+		String type = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/chart";
+
+		// parsed and saved on every addition
+		OOXMLPackage expected = new OOXMLPackage();
+		expected.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		for (int i = 0; i < 3; i++) {
+			Document doc = XMLDocHelper.newDocumentBuilder().parse(expected.getInputStream(rels));
+			Element e = doc.createElement("Relationship");
+			e.setAttribute("Id", "rId100_" + i);
+			e.setAttribute("Target", "charts/chart1_" + i + ".xml");
+			e.setAttribute("Type", type);
+			doc.getFirstChild().appendChild(e);
+			XMLDocHelper.save(doc, expected, rels, true);
+		}
+		Document types = XMLDocHelper.newDocumentBuilder().parse(expected.getInputStream("[Content_Types].xml"));
+		Element e = types.createElement("Default");
+		e.setAttribute("ContentType", "application/xml");
+		e.setAttribute("Extension", "test_xml");
+		types.getFirstChild().appendChild(e);
+		XMLDocHelper.save(types, expected, "[Content_Types].xml", true);
+
+		// kept parsed in the registry and serialized once
+		OOXMLPackage actual = new OOXMLPackage();
+		actual.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		for (int i = 0; i < 3; i++)
+			actual.addRelationship(rels, "rId100_" + i, type, "charts/chart1_" + i + ".xml");
+		assertTrue(actual.addDefaultContentType("test_xml", "application/xml"));
+		assertTrue(!actual.addDefaultContentType("test_xml", "application/xml"));
+		assertTrue(!actual.addDefaultContentType("xml", "application/xml"));
+
+		assertEquals("charts/chart1_2.xml", actual.getRelationship(rels, "rId100_2").target);
+		assertEquals(type, actual.getRelationship(rels, "rId100_0").type);
+		assertNull(actual.getRelationship(rels, "rId999"));
+		assertTrue(actual.isDirty(rels));
+
+		assertArrayEquals(IOUtils.toByteArray(expected.getInputStream(rels)),
+				IOUtils.toByteArray(actual.getInputStream(rels)));
+		assertArrayEquals(IOUtils.toByteArray(expected.getInputStream("[Content_Types].xml")),
+				IOUtils.toByteArray(actual.getInputStream("[Content_Types].xml")));
+
+		// additions after serialization go into the reparsed part, and ones
+		// from deferred writers (ex: chart helpers) are saved too
+		actual.addRelationship(rels, "rId101", type, "charts/chart2.xml");
+		final OOXMLPackage target = actual;
+		final String relsPart = rels;
+		final String relType = type;
+		actual.setDeferredPart("word/document.xml", new PartWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				target.addRelationship(relsPart, "rId102", relType, "charts/chart3.xml");
+				os.write("<document/>".getBytes("UTF-8"));
+			}
+		});
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		actual.writeTo(out);
+		OOXMLPackage saved = new OOXMLPackage();
+		saved.loadInMemory(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("charts/chart2.xml", saved.getRelationship(rels, "rId101").target);
+		assertEquals("charts/chart3.xml", saved.getRelationship(rels, "rId102").target);
+		assertEquals("charts/chart1_1.xml", saved.getRelationship(rels, "rId100_1").target);
+	}
+
+	@Test
+	public void inMemoryTest() throws IOException, JSONException {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		assertNull(docx.getDataDir());
+
+		InputStreamReader inputReader = new InputStreamReader(getClass().getResourceAsStream("/nestedListTest.in"));
+		JSONTokener tokener = new JSONTokener(inputReader);
+		Map<String, Object> rootMap = JsonHelper.parse((JSONObject) tokener.nextValue());
+
+		List<OOXMLProcessor> processors = new ArrayList<OOXMLProcessor>();
+		processors.add(new MergeFieldParser());
+		processors.add(new AugmentedDirectiveProcessor());
+		processors.add(new ChartDirectiveParser());
+		processors.add(new MagicNodeUnwrapper("word/document.xml"));
+		processors.add(new FreeMarkerRunner("word/document.xml"));
+
+		docx.apply(processors, rootMap);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		docx.save(out);
+
+		List<String> entryNames = new ArrayList<String>();
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		ZipEntry entry = null;
+		while ((entry = zis.getNextEntry()) != null)
+			entryNames.add(entry.getName());
+		zis.close();
+
+		assertTrue(entryNames.contains("[Content_Types].xml"));
+		assertTrue(entryNames.contains("word/document.xml"));
+		assertTrue(entryNames.contains("word/_rels/document.xml.rels"));
+	}
+
+	@Test
+	public void rawCopyTest() throws IOException {
+		byte[] src = IOUtils.toByteArray(getClass().getResourceAsStream("/chartTest.docx"));
+		Map<String, RawZipEntry> srcEntries = ZipHelper.readRawEntries(src);
+		assertEquals(20, srcEntries.size());
+
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(new ByteArrayInputStream(src));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		docx.save(out);
+		byte[] saved = out.toByteArray();
+
+		// embedded workbook is not touched, so compressed bytes are copied
+		String xlsx = "word/embeddings/Microsoft_Excel_____1.xlsx";
+		RawZipEntry before = srcEntries.get(xlsx);
+		RawZipEntry after = ZipHelper.readRawEntries(saved).get(xlsx);
+		assertEquals(before.getCrc(), after.getCrc());
+		assertEquals(before.getMethod(), after.getMethod());
+		assertEquals(before.getCompressedSize(), after.getCompressedSize());
+
+		// every entry, copied or recompressed, must be readable
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(saved));
+		ZipEntry entry = null;
+		int count = 0;
+		while ((entry = zis.getNextEntry()) != null) {
+			byte[] data = IOUtils.toByteArray(zis);
+			assertArrayEquals(entry.getName(), IOUtils.toByteArray(docx.getInputStream(entry.getName())), data);
+			count++;
+		}
+		zis.close();
+		assertEquals(20, count);
+	}
+
+	@Test
+	public void dirtyPartsTest() throws IOException {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		assertTrue(docx.getDirtyParts().isEmpty());
+
+		docx.apply(new MergeFieldParser(), new HashMap<String, Object>());
+		assertEquals(1, docx.getDirtyParts().size());
+		assertTrue(docx.isDirty("word/document.xml"));
+		assertTrue(!docx.isDirty("word/styles.xml"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		docx.save(out);
+		assertTrue(out.size() > 0);
+	}
+
+	@Test
+	public void lazyTidyTest() throws IOException {
+		OOXMLPackage eager = new OOXMLPackage();
+		eager.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		OOXMLPackage lazy = new OOXMLPackage();
+		lazy.setTidyMode(TidyMode.LAZY);
+		lazy.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+
+		// parts opened by processors are tidied as in eager mode
+		eager.apply(new MergeFieldParser(), new HashMap<String, Object>());
+		lazy.apply(new MergeFieldParser(), new HashMap<String, Object>());
+		assertArrayEquals(readStored(eager, "word/document.xml"), readStored(lazy, "word/document.xml"));
+
+		// others are kept as they are
+		byte[] styles = readStored(lazy, "word/styles.xml");
+		assertTrue(styles.length != readStored(eager, "word/styles.xml").length);
+	}
+
+	// reads through the store, so that lazy tidy is not triggered
+	private byte[] readStored(OOXMLPackage pkg, String part) throws IOException {
+		return IOUtils.toByteArray(pkg.getPartStore().openInputStream(part));
+	}
+
+	@Test
+	public void sharedDocumentTest() throws IOException {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+
+		// processors borrow the same document
+		Document doc = docx.getDocument("word/document.xml");
+		docx.apply(new MergeFieldParser(), new HashMap<String, Object>());
+		docx.apply(new AugmentedDirectiveProcessor(), new HashMap<String, Object>());
+		assertSame(doc, docx.getDocument("word/document.xml"));
+		assertTrue(docx.isDirty("word/document.xml"));
+
+		// serialized when the part is read as bytes
+		doc.getDocumentElement().appendChild(doc.createElement("sharedDocumentMarker"));
+		docx.markDirty("word/document.xml");
+		String xml = IOUtils.toString(docx.getInputStream("word/document.xml"), "UTF-8");
+		assertTrue(xml.contains("sharedDocumentMarker"));
+		assertNotSame(doc, docx.getDocument("word/document.xml"));
+
+		// and discarded when the part is replaced
+		doc = docx.getDocument("word/document.xml");
+		OutputStream os = docx.getOutputStream("word/document.xml");
+		os.write("<document/>".getBytes("UTF-8"));
+		os.close();
+		assertNotSame(doc, docx.getDocument("word/document.xml"));
+	}
+
+	@Test
+	public void streamingMergeFieldTest() throws Exception {
+		// output of MergeFieldParser is the golden file
+		String[] documents = { "/fieldTest.docx", "/chartTest.docx", "/totalTest.docx", "/nestedList.docx",
+				"/nestedList2.docx", "/extractingTest.docx" };
+		for (String name : documents) {
+			OOXMLPackage dom = new OOXMLPackage();
+			dom.loadInMemory(getClass().getResourceAsStream(name));
+			dom.apply(new MergeFieldParser(), new HashMap<String, Object>());
+
+			OOXMLPackage streaming = new OOXMLPackage();
+			streaming.loadInMemory(getClass().getResourceAsStream(name));
+			streaming.apply(new StreamingMergeFieldParser(), new HashMap<String, Object>());
+
+			String expected = normalizeXml(dom.getInputStream("word/document.xml"));
+			String actual = normalizeXml(streaming.getInputStream("word/document.xml"));
+			assertEquals(name, expected, actual);
+			assertTrue(name, actual.contains("KMagicNode"));
+		}
+	}
+
+	@Test
+	public void magicNodeUnwrapTest() throws Exception {
+		// regular expression version is the reference
+		String[] documents = { "/chartTest.docx", "/totalTest.docx", "/nestedList.docx", "/nestedList2.docx" };
+		for (String name : documents) {
+			OOXMLPackage docx = new OOXMLPackage();
+			docx.loadInMemory(getClass().getResourceAsStream(name));
+			docx.apply(new MergeFieldParser(), new HashMap<String, Object>());
+			docx.apply(new AugmentedDirectiveProcessor(), new HashMap<String, Object>());
+
+			String xml = IOUtils.toString(docx.getInputStream("word/document.xml"), "UTF-8");
+			assertTrue(name, xml.contains("<KMagicNode>"));
+			assertEquals(name, unwrapWithRegex(xml), unwrap(xml));
+
+			// magic nodes split across reads
+			StringWriter writer = new StringWriter();
+			MagicNodeUnwrapper.unwrap(new FilterReader(new StringReader(xml)) {
+				@Override
+				public int read(char[] cbuf, int off, int len) throws IOException {
+					return super.read(cbuf, off, Math.min(len, 7));
+				}
+			}, writer);
+			assertEquals(name, unwrap(xml), writer.toString());
+		}
+
+		assertEquals("<w:t><#list a as b></w:t>", unwrap("<w:t><KMagicNode><![CDATA[ #list a as b]]></KMagicNode></w:t>"));
+		assertEquals("</#list>", unwrap("<KMagicNode><![CDATA[/#list]]></KMagicNode>"));
+		assertEquals("<@chart a/>", unwrap("<KMagicNode><![CDATA[@chart a/]]></KMagicNode>"));
+		assertEquals(" ${a.b}", unwrap("<KMagicNode><![CDATA[ ${a.b}]]></KMagicNode>"));
+		assertEquals("<KMagicNode>${a}", unwrap("<KMagicNode><KMagicNode><![CDATA[${a}]]></KMagicNode>"));
+		assertEquals("a]", unwrap("<KMagicNode><![CDATA[a]]]></KMagicNode>"));
+		assertEquals("${a}${b}", unwrap("<KMagicNode><![CDATA[${a}]]></KMagicNode><KMagicNode><![CDATA[${b}]]></KMagicNode>"));
+		assertEquals("<KMagicNode><![CDATA[${a}]]></KMag", unwrap("<KMagicNode><![CDATA[${a}]]></KMag"));
+		assertEquals("<KMagicNo", unwrap("<KMagicNo"));
+	}
+
+	@Test
+	public void templateCompilerTest() throws IOException {
+		// same as structural processors applied one by one
+		String[] documents = { "/chartTest.docx", "/totalTest.docx", "/nestedList.docx", "/nestedList2.docx" };
+		for (String name : documents) {
+			OOXMLPackage expected = new OOXMLPackage();
+			expected.loadInMemory(getClass().getResourceAsStream(name));
+			expected.apply(new MergeFieldParser(), null);
+			expected.apply(new AugmentedDirectiveProcessor(), null);
+			expected.apply(new ChartDirectiveParser(), null);
+			expected.apply(new MagicNodeUnwrapper("word/document.xml"), null);
+
+			OOXMLPackage actual = new OOXMLPackage();
+			actual.loadInMemory(getClass().getResourceAsStream(name));
+			actual.apply(new TemplateCompiler(), null);
+
+			assertEquals(name, IOUtils.toString(expected.getInputStream("word/document.xml"), "UTF-8"),
+					IOUtils.toString(actual.getInputStream("word/document.xml"), "UTF-8"));
+		}
+	}
+
+	@Test
+	public void templateCompilerFailureTest() throws IOException {
+		// row directive outside of table cannot be hoisted
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		writePart(docx, "word/document.xml", "<w:document xmlns:w=\"" + XMLDocHelper.OOXML_NAMESPACES.get("w")
+				+ "\"><w:body><w:p><w:fldSimple w:instr=\" MERGEFIELD  @row#list a as b  \\* MERGEFORMAT \">"
+				+ "<w:r><w:t>\u00ab@row#list a as b\u00bb</w:t></w:r></w:fldSimple></w:p></w:body></w:document>");
+		byte[] document = IOUtils.toByteArray(docx.getInputStream("word/document.xml"));
+		try {
+			new TemplateCompiler().compile(docx, null);
+			fail("hoist failure must be thrown");
+		} catch (IOException e) {
+		}
+		assertArrayEquals(document, IOUtils.toByteArray(docx.getInputStream("word/document.xml")));
+
+		// pieces of magic node split across writes are unwrapped
+		StringWriter out = new StringWriter();
+		Writer writer = new MagicNodeUnwrapper.UnwrappingWriter(out);
+		String xml = "<a><KMagicNode><![CDATA[#list x as y]]></KMagicNode>${y}<KMagicNode><![CDATA[/#list]]></KMag";
+		for (int i = 0; i < xml.length(); i += 3)
+			writer.write(xml, i, Math.min(3, xml.length() - i));
+		writer.close();
+		assertEquals("<a><#list x as y>${y}<KMagicNode><![CDATA[/#list]]></KMag", out.toString());
+	}
+
+	private static final Pattern MAGICNODE_PTRN_DRCTV = Pattern
+			.compile("<KMagicNode><!\\[CDATA\\[[\\s]*(#(.*)|\\/#(.*)|@(.*))\\]\\]><\\/KMagicNode>");
+	private static final Pattern MAGICNODE_PTRN_EXPR = Pattern
+			.compile("<KMagicNode><!\\[CDATA\\[(.*)\\]\\]><\\/KMagicNode>");
+
+	// previous implementation with regular expressions, which needs whole part
+	// in memory. reference of unwrap tests and benchmark.
+	static String unwrapWithRegex(String xml) {
+		xml = MAGICNODE_PTRN_DRCTV.matcher(xml).replaceAll("<$1>");
+		return MAGICNODE_PTRN_EXPR.matcher(xml).replaceAll("$1");
+	}
+
+	private String unwrap(String xml) throws IOException {
+		StringWriter writer = new StringWriter();
+		MagicNodeUnwrapper.unwrap(new StringReader(xml), writer);
+		return writer.toString();
+	}
+
+	private String normalizeXml(InputStream is) throws Exception {
+		try {
+			Document doc = XMLDocHelper.newDocumentBuilder().parse(is);
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			XMLDocHelper.save(doc, os, true);
+			return os.toString("UTF-8");
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void deferredPartTest() throws IOException {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		final byte[] original = IOUtils.toByteArray(docx.getInputStream("word/document.xml"));
+		final byte[] content = "<w:document/>".getBytes("UTF-8");
+
+		docx.setDeferredPart("word/document.xml", new PartWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				// written 1000 times, never buffered as a whole
+				for (int i = 0; i < 1000; i++)
+					os.write(content);
+			}
+		});
+		assertTrue(docx.isDirty("word/document.xml"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		docx.writeTo(out);
+
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		ZipEntry entry = null;
+		int count = 0;
+		while ((entry = zis.getNextEntry()) != null) {
+			count++;
+			if (entry.getName().equals("word/document.xml"))
+				assertEquals(content.length * 1000, IOUtils.toByteArray(zis).length);
+		}
+		zis.close();
+		assertEquals(20, count);
+
+		// streamed content is not kept in the package
+		assertArrayEquals(original, IOUtils.toByteArray(docx.getInputStream("word/document.xml")));
+	}
+
+	@Test
+	public void entryTimeTest() throws IOException {
+		Map<String, Long> times = new HashMap<String, Long>();
+		long newest = 0;
+		ZipInputStream zis = new ZipInputStream(getClass().getResourceAsStream("/chartTest.docx"));
+		ZipEntry entry = null;
+		while ((entry = zis.getNextEntry()) != null) {
+			times.put(entry.getName(), entry.getTime());
+			newest = Math.max(newest, entry.getTime());
+		}
+		zis.close();
+
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		byte[] document = IOUtils.toByteArray(docx.getInputStream("word/document.xml"));
+		OutputStream os = docx.getOutputStream("word/document.xml");
+		os.write(document);
+		os.close();
+		os = docx.getOutputStream("word/new.xml");
+		os.write("<new/>".getBytes("UTF-8"));
+		os.close();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		docx.writeTo(out);
+
+		// rewritten parts keep source times, new parts take the newest one
+		zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		while ((entry = zis.getNextEntry()) != null) {
+			if (times.containsKey(entry.getName()))
+				assertEquals(entry.getName(), (long) times.get(entry.getName()), entry.getTime());
+			else
+				assertEquals(entry.getName(), newest, entry.getTime());
+		}
+		zis.close();
+	}
+
+	@Test
+	public void deferredPartFailureTest() throws IOException {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+
+		// content types come first unless parts are deferred
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		docx.writeTo(out);
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("[Content_Types].xml", zis.getNextEntry().getName());
+		zis.close();
+
+		docx.setDeferredPart("word/document.xml", new PartWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				os.write("<w:document>".getBytes("UTF-8"));
+				throw new IOException("writer failed");
+			}
+		});
+
+		out = new ByteArrayOutputStream();
+		try {
+			docx.writeTo(out);
+			assertTrue(false);
+		} catch (IOException e) {
+			assertEquals("writer failed", e.getMessage());
+		}
+
+		// failed archive has no central directory
+		byte[] b = out.toByteArray();
+		for (int i = 0; i + 3 < b.length; i++)
+			assertTrue(!(b[i] == 'P' && b[i + 1] == 'K' && b[i + 2] == 5 && b[i + 3] == 6));
+	}
+
+	@Test
+	public void templateTest() throws Exception {
+		final DocxTemplate template = DocxTemplate.compile(getClass().getResourceAsStream("/chartTest.docx"));
+
+		InputStreamReader inputReader = new InputStreamReader(getClass().getResourceAsStream("/nestedListTest.in"));
+		JSONTokener tokener = new JSONTokener(inputReader);
+		final Map<String, Object> rootMap = JsonHelper.parse((JSONObject) tokener.nextValue());
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						template.render(rootMap, out);
+						return out.toByteArray();
+					}
+				}));
+			}
+
+			byte[] first = null;
+			for (Future<byte[]> f : results) {
+				byte[] docx = f.get();
+				OOXMLPackage pkg = new OOXMLPackage();
+				pkg.loadInMemory(new ByteArrayInputStream(docx));
+				byte[] document = IOUtils.toByteArray(pkg.getInputStream("word/document.xml"));
+				if (first == null)
+					first = document;
+				assertArrayEquals(first, document);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void templateCompileFailureTest() throws Exception {
+		OOXMLPackage docx = new OOXMLPackage();
+		docx.loadInMemory(getClass().getResourceAsStream("/chartTest.docx"));
+		writePart(docx, "word/document.xml", "<w:document xmlns:w=\"" + XMLDocHelper.OOXML_NAMESPACES.get("w")
+				+ "\"><w:body>");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		docx.writeTo(out);
+
+		// part failed to compile is not rendered as it is
+		try {
+			DocxTemplate.compile(new ByteArrayInputStream(out.toByteArray()));
+			fail("compile failure must be thrown");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void parallelPartsTest() throws Exception {
+		InputStreamReader inputReader = new InputStreamReader(getClass().getResourceAsStream("/totalTest.in"));
+		JSONTokener tokener = new JSONTokener(inputReader);
+		Map<String, Object> rootMap = JsonHelper.parse((JSONObject) tokener.nextValue());
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			DocxTemplate serial = DocxTemplate.compile(getClass().getResourceAsStream("/totalTest.docx"));
+			DocxTemplate parallel = DocxTemplate.compile(getClass().getResourceAsStream("/totalTest.docx"),
+					FreeMarkerRunner.getDefaultConfiguration(), executor);
+
+			// main document first, then headers, footers and notes
+			List<String> parts = new ArrayList<String>(parallel.getTemplatedParts());
+			assertEquals("word/document.xml", parts.get(0));
+			assertEquals(9, parts.size());
+			assertTrue(parts.contains("word/header3.xml"));
+			assertTrue(parts.contains("word/footer1.xml"));
+			assertTrue(parts.contains("word/footnotes.xml"));
+			assertTrue(parts.contains("word/endnotes.xml"));
+			assertEquals(parts, new ArrayList<String>(serial.getTemplatedParts()));
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			serial.render(rootMap, expected);
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			parallel.render(rootMap, actual);
+
+			OOXMLPackage a = new OOXMLPackage();
+			a.loadInMemory(new ByteArrayInputStream(expected.toByteArray()));
+			OOXMLPackage b = new OOXMLPackage();
+			b.loadInMemory(new ByteArrayInputStream(actual.toByteArray()));
+			for (String part : parts)
+				assertArrayEquals(part, IOUtils.toByteArray(a.getInputStream(part)),
+						IOUtils.toByteArray(b.getInputStream(part)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void renderContextTest() throws Exception {
+		Map<String, Object> shared = new HashMap<String, Object>();
+		shared.put("a", "1");
+		shared.put("b", "2");
+
+		RenderContext ctx = new RenderContext(shared);
+		assertEquals("1", ctx.put("a", "overlay"));
+		ctx.put("c", "3");
+		assertEquals("overlay", ctx.get("a"));
+		assertEquals("2", ctx.get("b"));
+		assertEquals(3, ctx.size());
+		assertEquals("1", shared.get("a"));
+		assertEquals(2, shared.size());
+
+		assertEquals("3", ctx.remove("c"));
+		try {
+			ctx.remove("b");
+			assertTrue(false);
+		} catch (UnsupportedOperationException e) {
+		}
+
+		// helper functions of a render do not leak into the model
+		InputStreamReader inputReader = new InputStreamReader(getClass().getResourceAsStream("/nestedListTest.in"));
+		JSONTokener tokener = new JSONTokener(inputReader);
+		Map<String, Object> rootMap = JsonHelper.parse((JSONObject) tokener.nextValue());
+		Map<String, Object> before = new HashMap<String, Object>(rootMap);
+
+		DocxTemplate template = DocxTemplate.compile(getClass().getResourceAsStream("/chartTest.docx"));
+		template.render(rootMap, new ByteArrayOutputStream());
+		assertEquals(before, rootMap);
+	}
+
+	@Test
+	public void batchRenderTest() throws Exception {
+		InputStreamReader inputReader = new InputStreamReader(getClass().getResourceAsStream("/nestedListTest.in"));
+		JSONTokener tokener = new JSONTokener(inputReader);
+		Map<String, Object> rootMap = JsonHelper.parse((JSONObject) tokener.nextValue());
+		List<Map<String, Object>> models = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 10; i++)
+			models.add(rootMap);
+
+		DocxTemplate template = DocxTemplate.compile(getClass().getResourceAsStream("/chartTest.docx"));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			BatchRenderer renderer = new BatchRenderer(executor, 4);
+
+			ByteArrayOutputStream zip = new ByteArrayOutputStream();
+			ZipOutputSink zipSink = new ZipOutputSink(zip);
+			BatchReport report = renderer.renderBatch(template, models.iterator(), zipSink);
+			zipSink.close();
+			assertEquals(10, report.getDocumentCount());
+			assertTrue(report.getFailures().isEmpty());
+			assertTrue(report.getLatencyPercentile(50) <= report.getLatencyPercentile(99));
+
+			ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+			List<String> names = new ArrayList<String>();
+			ZipEntry entry = null;
+			while ((entry = zis.getNextEntry()) != null) {
+				names.add(entry.getName());
+				OOXMLPackage pkg = new OOXMLPackage();
+				pkg.loadInMemory(new ByteArrayInputStream(IOUtils.toByteArray(zis)));
+				assertTrue(pkg.hasPart("word/document.xml"));
+			}
+			zis.close();
+			Collections.sort(names);
+			assertEquals(10, names.size());
+			assertEquals("000000.docx", names.get(0));
+
+			File dir = new File(System.getProperty("java.io.tmpdir"), "docxcod-batch-" + System.nanoTime());
+			try {
+				renderer.setNamePattern("out/%d.docx");
+				report = renderer.renderBatch(template, models.iterator(), new DirectoryOutputSink(dir));
+				assertEquals(10, report.getDocumentCount());
+				assertTrue(new File(dir, "out/9.docx").isFile());
+				assertEquals(10, new File(dir, "out").list().length);
+			} finally {
+				FileUtils.deleteDirectory(dir);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void mainTest() throws IOException, JSONException {
 		File targetDir = new File(".test/mainTest");
@@ -226,6 +1239,29 @@ public class DocxTest {
 		assertTrue(Arrays.equals(extractedArray, files));
 	}
 
+	@Test
+	public void truncatedExtractTest() throws IOException {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(zip);
+		zos.putNextEntry(new ZipEntry("a.xml"));
+		zos.write("<a/>".getBytes("UTF-8"));
+		zos.putNextEntry(new ZipEntry("b.xml"));
+		Random random = new Random(0);
+		for (int i = 0; i < 100000; i++)
+			zos.write('a' + random.nextInt(26));
+		zos.close();
+
+		// partly inflated entry is not stored
+		MemoryPartStore store = new MemoryPartStore();
+		try {
+			ZipHelper.extract(new ByteArrayInputStream(Arrays.copyOf(zip.toByteArray(), zip.size() / 2)), store);
+			fail("truncated entry must be reported");
+		} catch (IOException e) {
+		}
+		assertTrue(store.exists("a.xml"));
+		assertTrue(!store.exists("b.xml"));
+	}
+
 	@Test
 	public void relsTest() {
 	}
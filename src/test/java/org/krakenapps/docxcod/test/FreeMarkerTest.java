@@ -16,9 +16,12 @@
 package org.krakenapps.docxcod.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.io.InputStreamReader;
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
@@ -26,7 +29,9 @@ import java.util.Scanner;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.junit.Test;
+import org.krakenapps.docxcod.FreeMarkerRunner;
 import org.krakenapps.docxcod.JsonHelper;
+import org.krakenapps.docxcod.PartTemplateLoader;
 import org.krakenapps.docxcod.util.CloseableHelper;
 
 import freemarker.core.Environment;
@@ -88,4 +93,24 @@ public class FreeMarkerTest {
 				scanner.close();
 		}
 	}
+
+	@Test
+	public void partTemplateCacheTest() throws Exception {
+		Configuration cfg = FreeMarkerRunner.createConfiguration();
+		PartTemplateLoader loader = (PartTemplateLoader) cfg.getTemplateLoader();
+
+		byte[] a = "<a>${x}</a>".getBytes("UTF-8");
+		byte[] b = "<b>${x}</b>".getBytes("UTF-8");
+
+		// same content is parsed once, even if it comes from other package
+		Template t1 = loader.getTemplate(cfg, "word/document.xml", a);
+		Template t2 = loader.getTemplate(cfg, "word/document.xml", a.clone());
+		Template t3 = loader.getTemplate(cfg, "word/document.xml", b);
+		assertSame(t1, t2);
+		assertNotSame(t1, t3);
+
+		StringWriter out = new StringWriter();
+		t3.process(Collections.singletonMap("x", "1"), out);
+		assertEquals("<b>1</b>", out.toString());
+	}
 }
@@ -15,15 +15,30 @@
  */
 package org.krakenapps.docxcod.test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.krakenapps.docxcod.util.XMLDocHelper.compileXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPath;
 import static org.krakenapps.docxcod.util.XMLDocHelper.evaluateXPathExpr;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newDocumentBuilder;
 import static org.krakenapps.docxcod.util.XMLDocHelper.newXPath;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -34,10 +49,12 @@ import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 
+import org.apache.commons.io.IOUtils;
 import org.custommonkey.xmlunit.Diff;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.krakenapps.docxcod.util.XMLDocHelper;
 import org.krakenapps.docxcod.util.XMLDocHelper.NodeListIterAdapter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -92,6 +109,128 @@ public class XMLTest {
 		}
 	}
 
+	@Test
+	public void concurrentParseAndSaveTest() throws Exception {
+		final byte[] source = IOUtils.toByteArray(getClass().getResourceAsStream("/sampledoc/word/document.xml"));
+		final byte[] expected = parseQueryAndSave(source);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 200; i++) {
+				results.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return parseQueryAndSave(source);
+					}
+				}));
+			}
+			for (Future<byte[]> f : results)
+				assertArrayEquals(expected, f.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void namespaceResolutionTest() throws Exception {
+		String xml = "<root xmlns='urn:default' xmlns:w='urn:not-wordml'>"
+				+ "<w:p/><c:chart xmlns:c='http://schemas.openxmlformats.org/drawingml/2006/chart'/>"
+				+ "<k:item xmlns:k='urn:custom'/></root>";
+		Document doc = newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+		XPath xpath = newXPath(doc);
+
+		// default namespace of document element
+		assertEquals(1, evaluateXPath(xpath, "/DEF:root", doc).getLength());
+		// declaration on document element wins over well-known prefix
+		assertEquals(1, evaluateXPath(xpath, "//w:p", doc).getLength());
+		// well-known prefix declared on inner element
+		assertEquals(1, evaluateXPath(xpath, "//c:chart", doc).getLength());
+		// unknown prefix is found by scanning the document
+		assertEquals(1, evaluateXPath(xpath, "//k:item", doc).getLength());
+	}
+
+	@Test
+	public void compiledXPathCacheTest() throws Exception {
+		Document doc1 = newDocumentBuilder().parse(
+				new InputSource(new StringReader("<k:a xmlns:k='urn:one'><k:b/></k:a>")));
+		Document doc2 = newDocumentBuilder().parse(
+				new InputSource(new StringReader("<k:a xmlns:k='urn:two'><k:b/><k:b/></k:a>")));
+		Document doc3 = newDocumentBuilder().parse(
+				new InputSource(new StringReader("<a xmlns='urn:one'><b/></a>")));
+
+		// same expression with prefix bound differently must not be shared
+		assertEquals(1, evaluateXPath(newXPath(doc1), "//k:b", doc1).getLength());
+		assertEquals(2, evaluateXPath(newXPath(doc2), "//k:b", doc2).getLength());
+		try {
+			evaluateXPath(newXPath(doc3), "//k:b", doc3);
+			fail("unbound prefix must not be resolved with cached expression");
+		} catch (XPathExpressionException e) {
+		}
+
+		// expressions over default and well-known namespaces are shared
+		Document rels1 = newDocumentBuilder().parse(getClass().getResourceAsStream("/sampledoc/_rels/.rels"));
+		Document rels2 = newDocumentBuilder().parse(getClass().getResourceAsStream("/sampledoc/_rels/.rels"));
+		assertTrue(compileXPath(rels1, "//DEF:Relationship") == compileXPath(rels2, "//DEF:Relationship"));
+		assertTrue(compileXPath(doc1, "//k:b") != compileXPath(doc1, "//k:b"));
+		assertEquals(0, evaluateXPath(newXPath(doc3), "//DEF:Relationship", doc3).getLength());
+	}
+
+	@Test
+	public void compiledXPathCacheRebindTest() throws Exception {
+		Document sheet = newDocumentBuilder().parse(
+				new InputSource(new StringReader("<worksheet xmlns:x='"
+						+ XMLDocHelper.OOXML_NAMESPACES.get("x") + "'><x:ClientData/></worksheet>")));
+		Document vml = newDocumentBuilder().parse(
+				new InputSource(new StringReader("<xml xmlns:x='urn:schemas-microsoft-com:office:excel'>"
+						+ "<x:ClientData/><x:ClientData/></xml>")));
+
+		// expression cached for spreadsheetml must not be used for a document
+		// binding x to another namespace, in either order
+		assertEquals(1, evaluateXPath(sheet, "//x:ClientData").getLength());
+		assertEquals(2, evaluateXPath(vml, "//x:ClientData").getLength());
+		assertEquals(1, evaluateXPath(sheet, "//x:ClientData").getLength());
+		assertEquals(2, evaluateXPath(vml, "//x:ClientData[1]/../x:ClientData").getLength());
+		assertEquals(1, evaluateXPath(sheet, "//x:ClientData[1]/../x:ClientData").getLength());
+		assertTrue(compileXPath(sheet, "//x:ClientData") == compileXPath(sheet, "//x:ClientData"));
+		assertTrue(compileXPath(vml, "//x:ClientData") != compileXPath(vml, "//x:ClientData"));
+	}
+
+	@Test
+	public void compiledXPathCacheReleaseTest() throws Exception {
+		Document doc = newDocumentBuilder().parse(getClass().getResourceAsStream("/sampledoc/_rels/.rels"));
+		WeakReference<Document> ref = new WeakReference<Document>(doc);
+		assertEquals(1, evaluateXPath(doc, "//DEF:Relationship[@Id='rId1']").getLength());
+
+		// cached expression does not keep the document it is compiled for
+		doc = null;
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(ref.get());
+
+		Document other = newDocumentBuilder().parse(getClass().getResourceAsStream("/sampledoc/_rels/.rels"));
+		assertEquals(1, evaluateXPath(other, "//DEF:Relationship[@Id='rId1']").getLength());
+	}
+
+	private byte[] parseQueryAndSave(byte[] source) throws Exception {
+		Document doc = newDocumentBuilder().parse(new ByteArrayInputStream(source));
+		XPath xpath = newXPath(doc);
+		NodeList nodeList = evaluateXPath(xpath, "//w:p", doc);
+		assertTrue(nodeList.getLength() > 0);
+		for (Node n : new NodeListIterAdapter(nodeList))
+			n.appendChild(getMagicNode(doc));
+
+		// interleave another document in the same thread
+		Document other = newDocumentBuilder().parse(new ByteArrayInputStream(source));
+		assertTrue(evaluateXPath(newXPath(other), "//KMagicNode", other).getLength() == 0);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XMLDocHelper.save(doc, out, true);
+		return out.toByteArray();
+	}
+
 	private void checkNodeName(Document genDoc, XPath xpath, String expr, String nodeName)
 			throws XPathExpressionException {
 		NodeList nodeList = evaluateXPath(xpath, expr, genDoc);